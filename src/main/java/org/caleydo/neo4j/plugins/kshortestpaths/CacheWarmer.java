@@ -0,0 +1,347 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphalgo.WeightedPath;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+/**
+ * keeps the results of the hot queries in the {@link PathResultCache}. Every query is logged with its frequency and
+ * latency, a background thread recomputes the top ones (by frequency times latency) that are no longer cached, e.g.
+ * after an invalidating commit or an eviction. It runs at the lowest priority, just while no query is running and
+ * within a cpu budget.
+ *
+ * configured via the system properties kshortestpaths.warmer.top (the number of queries to keep warm, 0 disables
+ * it, default 16) and kshortestpaths.warmer.cpu (the fraction of the cpu time to spend, default 0.1)
+ *
+ * @author sam
+ *
+ */
+public class CacheWarmer {
+	private static final int TOP = Integer.getInteger("kshortestpaths.warmer.top", 16);
+	private static final double CPU_BUDGET = Double.parseDouble(System.getProperty("kshortestpaths.warmer.cpu", "0.1"));
+	/**
+	 * the maximal number of logged queries
+	 */
+	private static final int LOG_SIZE = 1024;
+	private static final long TICK_MS = 1000;
+	/**
+	 * the counts are halved after this period such that the log follows a changing workload
+	 */
+	private static final long DECAY_MS = TimeUnit.MINUTES.toMillis(10);
+	/**
+	 * the maximal cpu time to save up
+	 */
+	private static final long MAX_ALLOWANCE = TimeUnit.SECONDS.toNanos(2);
+
+	private static final Map<GraphDatabaseService, CacheWarmer> warmers = new WeakHashMap<>();
+
+	private final GraphDatabaseService db;
+	private final PathResultCache cache;
+	private final int top;
+	private final double budget;
+	private final Map<String, Stats> log = new HashMap<>();
+	private ScheduledExecutorService executor;
+
+	private long allowance = 0;
+	private long lastTick = System.nanoTime();
+	private long lastDecay = System.currentTimeMillis();
+
+	CacheWarmer(GraphDatabaseService db, PathResultCache cache, int top, double budget) {
+		this.db = db;
+		this.cache = cache;
+		this.top = top;
+		this.budget = budget;
+	}
+
+	/**
+	 * @return the shared warmer of the given database, the first call starts its background thread
+	 */
+	public static CacheWarmer of(GraphDatabaseService db) {
+		if (db instanceof FakeGraphDatabase) {
+			db = ((FakeGraphDatabase) db).getDelegate();
+		}
+		synchronized (warmers) {
+			CacheWarmer warmer = warmers.get(db);
+			if (warmer == null) {
+				warmer = new CacheWarmer(db, PathResultCache.of(db), TOP, CPU_BUDGET);
+				if (TOP > 0) {
+					warmer.start();
+				}
+				warmers.put(db, warmer);
+			}
+			return warmer;
+		}
+	}
+
+	private void start() {
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "CacheWarmer");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				tick();
+			} catch (RuntimeException e) {
+				System.err.println("can't warm the path cache: " + e);
+			}
+		}, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+		db.registerKernelEventHandler(new KernelEventHandler() {
+			@Override
+			public void beforeShutdown() {
+				executor.shutdownNow();
+			}
+
+			@Override
+			public void kernelPanic(ErrorState error) {
+			}
+
+			@Override
+			public Object getResource() {
+				return null;
+			}
+
+			@Override
+			public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+				return ExecutionOrder.BEFORE;
+			}
+		});
+	}
+
+	/**
+	 * logs an execution of the given query
+	 *
+	 * @param nanos
+	 *            the time it took or -1 if served from the cache
+	 */
+	public synchronized void record(String key, Query query, long nanos) {
+		Stats s = log.get(key);
+		if (s == null) {
+			if (log.size() >= LOG_SIZE) {
+				evictColdest();
+			}
+			s = new Stats(query);
+			log.put(key, s);
+		}
+		s.count++;
+		if (nanos >= 0) {
+			s.nanos += nanos;
+			s.computed++;
+		}
+	}
+
+	private void evictColdest() {
+		String coldest = null;
+		double min = Double.MAX_VALUE;
+		for (Map.Entry<String, Stats> e : log.entrySet()) {
+			double score = e.getValue().score();
+			if (score < min) {
+				min = score;
+				coldest = e.getKey();
+			}
+		}
+		log.remove(coldest);
+	}
+
+	/**
+	 * @return the keys of the hottest queries, hottest first
+	 */
+	synchronized List<String> getTop() {
+		List<Map.Entry<String, Stats>> entries = new ArrayList<>(log.entrySet());
+		Collections.sort(entries, (a, b) -> Double.compare(b.getValue().score(), a.getValue().score()));
+		List<String> r = new ArrayList<>(Math.min(top, entries.size()));
+		for (int i = 0; i < entries.size() && i < top; ++i) {
+			r.add(entries.get(i).getKey());
+		}
+		return r;
+	}
+
+	private synchronized Query getQuery(String key) {
+		Stats s = log.get(key);
+		return s == null ? null : s.query;
+	}
+
+	private synchronized void decay() {
+		long now = System.currentTimeMillis();
+		if (now - lastDecay < DECAY_MS) {
+			return;
+		}
+		lastDecay = now;
+		for (Iterator<Stats> it = log.values().iterator(); it.hasNext();) {
+			Stats s = it.next();
+			s.count /= 2;
+			s.computed /= 2;
+			s.nanos /= 2;
+			if (s.count == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	private void tick() {
+		long now = System.nanoTime();
+		allowance = Math.min(MAX_ALLOWANCE, allowance + (long) ((now - lastTick) * budget));
+		lastTick = now;
+		decay();
+		if (allowance > 0 && KShortestPathsAsync.getRunningQueries() == 0) {
+			allowance -= warm(allowance);
+		}
+	}
+
+	/**
+	 * recomputes the uncached top queries until the given cpu time is spent or a query arrives
+	 *
+	 * @return the spent cpu time
+	 */
+	long warm(long allowance) {
+		long spent = 0;
+		for (String key : getTop()) {
+			if (spent >= allowance || KShortestPathsAsync.getRunningQueries() > 0) {
+				break;
+			}
+			if (cache.get(key) != null) {
+				continue;
+			}
+			Query query = getQuery(key);
+			QueryFlights.Flight flight = query == null ? null : QueryFlights.lead(key);
+			if (flight == null) { // it is running
+				continue;
+			}
+			long start = cpuTime();
+			try {
+				long version = cache.getVersion();
+				PathSessions.Continuation search = query.search(db, Trace.OFF, new YieldingListener(flight));
+				if (search != null) {
+					search.close();
+					cache.put(key, flight.getPaths(), query.getDependencies(), version);
+				}
+			} catch (Yield e) {
+				break;
+			} catch (RuntimeException e) {
+				System.err.println("can't warm " + key.replace('\u0000', ' ') + ": " + e);
+			} finally {
+				flight.finish();
+				spent += cpuTime() - start;
+			}
+		}
+		return spent;
+	}
+
+	private static long cpuTime() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CacheWarmer [queries=" + log.size() + ", top=" + top + ", budget=" + budget + "]";
+	}
+
+	/**
+	 * collects the found paths and aborts once a query arrives, unless the query waits for this result
+	 */
+	private static final class YieldingListener implements IPathReadyListener {
+		private final QueryFlights.Flight flight;
+
+		public YieldingListener(QueryFlights.Flight flight) {
+			this.flight = flight;
+		}
+
+		@Override
+		public void onPathReady(WeightedPath path) {
+			flight.add(path);
+			if (KShortestPathsAsync.getRunningQueries() > 0 && flight.abandon()) {
+				throw new Yield();
+			}
+		}
+	}
+
+	private static final class Yield extends RuntimeException {
+		private static final long serialVersionUID = 4208533437917352416L;
+	}
+
+	private static final class Stats {
+		private final Query query;
+		private long count;
+		private long computed;
+		private long nanos;
+
+		public Stats(Query query) {
+			this.query = query;
+		}
+
+		/**
+		 * the expected time saved by caching: frequency times average latency
+		 */
+		public double score() {
+			return computed == 0 ? count : count * (nanos / (double) computed);
+		}
+	}
+
+	/**
+	 * the parameters of a path query
+	 */
+	public static final class Query {
+		private final Long from, to;
+		private final Integer k, minLength, maxDepth;
+		private final String constraints, algorithm, costFunction;
+
+		public Query(Long from, Long to, Integer k, Integer minLength, Integer maxDepth, String constraints,
+				String algorithm, String costFunction) {
+			this.from = from;
+			this.to = to;
+			this.k = k;
+			this.minLength = minLength;
+			this.maxDepth = maxDepth;
+			this.constraints = constraints;
+			this.algorithm = algorithm;
+			this.costFunction = costFunction;
+		}
+
+		public Integer getK() {
+			return k;
+		}
+
+		/**
+		 * @return the same query for k paths
+		 */
+		public Query withK(int k) {
+			return new Query(from, to, k, minLength, maxDepth, constraints, algorithm, costFunction);
+		}
+
+		/**
+		 * @return the {@link PathResultCache} key
+		 */
+		public String key() {
+			return PathResultCache.key("kShortestPaths", from, to, k, minLength, maxDepth,
+					PathResultCache.normalize(constraints), algorithm, costFunction);
+		}
+
+		public PathResultCache.Dependencies getDependencies() {
+			return PathResultCache.Dependencies.of(constraints, costFunction);
+		}
+
+		/**
+		 * see {@link KShortestPathsAsync#search}
+		 */
+		public PathSessions.Continuation search(GraphDatabaseService db, Trace trace, IPathReadyListener listener) {
+			return KShortestPathsAsync.search(db, from, to, k, minLength, maxDepth, constraints, algorithm,
+					costFunction, trace, listener);
+		}
+	}
+}
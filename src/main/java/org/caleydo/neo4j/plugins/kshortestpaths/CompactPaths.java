@@ -0,0 +1,168 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * id only encoding of a list of result paths, holding exactly what {@link KShortestPaths#getPathAsMap(Path)} writes.
+ * Per path: its weight (the path length), the number of nodes, their ids, the number of relationships and per
+ * relationship its id, type index, start and end node id. Paths can be appended while others read the already added ones.
+ *
+ * @author sam
+ *
+ */
+public final class CompactPaths {
+	private volatile long[] data;
+	private volatile int[] offsets = new int[4];
+	private final List<String> types = new ArrayList<>(2);
+	private int length = 0;
+	private volatile int count = 0;
+
+	public CompactPaths() {
+		this.data = new long[64];
+	}
+
+	/**
+	 * restores the given encoding, see {@link #getData()} and {@link #getTypes()}
+	 */
+	public CompactPaths(long[] data, List<String> types) {
+		this.data = data;
+		this.types.addAll(types);
+		int i = 0;
+		while (i < data.length) {
+			addOffset(i);
+			i += 2 + (int) data[i + 1];
+			i += 1 + 4 * (int) data[i];
+		}
+		this.length = data.length;
+	}
+
+	public synchronized void add(Path path) {
+		int start = length;
+		ensure(2);
+		data[length++] = path.length();
+		int count = length++;
+		for (Node node : path.nodes()) {
+			ensure(1);
+			data[length++] = node.getId();
+		}
+		data[count] = length - count - 1;
+		ensure(1);
+		count = length++;
+		for (Relationship rel : path.relationships()) {
+			ensure(4);
+			long[] d = data;
+			d[length++] = rel.getId();
+			d[length++] = typeIndex(rel.getType().name());
+			d[length++] = rel.getStartNode().getId();
+			d[length++] = rel.getEndNode().getId();
+		}
+		data[count] = (length - count - 1) / 4;
+		addOffset(start);
+	}
+
+	private void addOffset(int start) {
+		int[] o = offsets;
+		if (count == o.length) {
+			o = Arrays.copyOf(o, count * 2);
+		}
+		o[count] = start;
+		offsets = o;
+		count++; // publish
+	}
+
+	private void ensure(int more) {
+		if (length + more > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + more));
+		}
+	}
+
+	private int typeIndex(String type) {
+		int i = types.indexOf(type);
+		if (i < 0) {
+			i = types.size();
+			types.add(type);
+		}
+		return i;
+	}
+
+	/**
+	 * @return the number of paths
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the approximate memory footprint
+	 */
+	public long bytes() {
+		return 64 + data.length * 8L + offsets.length * 4L + types.size() * 48L;
+	}
+
+	/**
+	 * @return the encoded paths, see class comment
+	 */
+	public synchronized long[] getData() {
+		return Arrays.copyOf(data, length);
+	}
+
+	public synchronized List<String> getTypes() {
+		return new ArrayList<>(types);
+	}
+
+	/**
+	 * writes the i-th path like {@link PathJsonWriter#write(JsonWriter, Path)}
+	 */
+	public void writeTo(JsonWriter writer, int i) throws IOException {
+		int n = count;
+		if (i >= n) {
+			throw new IndexOutOfBoundsException(i + " >= " + n);
+		}
+		long[] d;
+		String[] t;
+		synchronized (this) {
+			d = data;
+			t = types.toArray(new String[types.size()]);
+		}
+		int p = offsets[i];
+		writer.beginObject();
+		writer.name("weight").value(d[p++]);
+		int nodes = (int) d[p++];
+		writer.name("nodes").beginArray();
+		for (int j = 0; j < nodes; ++j) {
+			PathJsonWriter.writeNode(writer, d[p++]);
+		}
+		writer.endArray();
+		int rels = (int) d[p++];
+		writer.name("edges").beginArray();
+		for (int j = 0; j < rels; ++j) {
+			PathJsonWriter.writeEdge(writer, d[p], t[(int) d[p + 1]], d[p + 2], d[p + 3]);
+			p += 4;
+		}
+		writer.endArray();
+		writer.endObject();
+	}
+
+	/**
+	 * writes all paths as elements of the current array
+	 */
+	public void writeTo(JsonWriter writer) throws IOException {
+		for (int i = 0; i < size(); ++i) {
+			writeTo(writer, i);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CompactPaths [paths=" + count + ", bytes=" + bytes() + "]";
+	}
+}
@@ -0,0 +1,596 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * a small cost expression language compiled to a closure tree, as a fast alternative to a JavaScript cost function.
+ *
+ * <pre>
+ * expr    := cond
+ * cond    := or ('?' expr ':' expr)?
+ * or      := and ('||' and)*
+ * and     := cmp ('&&' cmp)*
+ * cmp     := add (('==' | '!=' | '<' | '<=' | '>' | '>=') add)?
+ * add     := mul (('+' | '-') mul)*
+ * mul     := unary (('*' | '/' | '%') unary)*
+ * unary   := ('-' | '!') unary | primary
+ * primary := number | 'string' | "string" | true | false | type | name | name '(' args ')' | '(' expr ')'
+ * </pre>
+ *
+ * a plain name is a property lookup of the relationship, <code>type</code> its type name. Functions: has(name),
+ * prop(name, default), min, max, abs, log, sqrt, pow.
+ *
+ * e.g. <code>1 + (type == 'interacts' ? 0 : 2) + max(0, 1 - score)</code>
+ *
+ * @author sam
+ *
+ */
+public class CostExpression {
+	public static final String PREFIX = "expr:";
+
+	private final Expr root;
+	private final Set<String> properties;
+
+	private CostExpression(Expr root, Set<String> properties) {
+		this.root = root;
+		this.properties = properties;
+	}
+
+	public static boolean isCostExpression(String costFunction) {
+		return costFunction != null && costFunction.startsWith(PREFIX);
+	}
+
+	/**
+	 * @param code
+	 *            the expression with or without the {@link #PREFIX}
+	 * @throws IllegalArgumentException
+	 *             if the expression can't be parsed
+	 */
+	public static CostExpression compile(String code) {
+		if (code.startsWith(PREFIX)) {
+			code = code.substring(PREFIX.length());
+		}
+		Parser p = new Parser(code);
+		Expr root = p.parse();
+		return new CostExpression(root, Collections.unmodifiableSet(p.properties));
+	}
+
+	public double cost(Relationship rel) {
+		return root.num(rel);
+	}
+
+	/**
+	 * @return the properties referenced by this expression, the only ones that will be read
+	 */
+	public Set<String> getProperties() {
+		return properties;
+	}
+
+	static double toNum(Object v) {
+		if (v instanceof Number) {
+			return ((Number) v).doubleValue();
+		}
+		if (v instanceof Boolean) {
+			return ((Boolean) v) ? 1 : 0;
+		}
+		if (v instanceof String) {
+			try {
+				return Double.parseDouble((String) v);
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		return 0;
+	}
+
+	static boolean toBool(Object v) {
+		if (v instanceof Boolean) {
+			return (Boolean) v;
+		}
+		if (v instanceof String) {
+			return !((String) v).isEmpty();
+		}
+		return v != null && toNum(v) != 0;
+	}
+
+	abstract static class Expr {
+		abstract double num(Relationship r);
+
+		Object value(Relationship r) {
+			return num(r);
+		}
+
+		boolean bool(Relationship r) {
+			return num(r) != 0;
+		}
+
+		/**
+		 * @return whether the value of this expression is a number, i.e. {@link #num(Relationship)} is sufficient
+		 */
+		boolean isNumeric() {
+			return true;
+		}
+	}
+
+	static final class Constant extends Expr {
+		private final Object value;
+		private final double num;
+
+		Constant(Object value) {
+			this.value = value;
+			this.num = toNum(value);
+		}
+
+		@Override
+		double num(Relationship r) {
+			return num;
+		}
+
+		@Override
+		Object value(Relationship r) {
+			return value;
+		}
+
+		@Override
+		boolean bool(Relationship r) {
+			return toBool(value);
+		}
+
+		@Override
+		boolean isNumeric() {
+			return value instanceof Number;
+		}
+	}
+
+	static final class Property extends Expr {
+		private final String key;
+		private final Object defaultValue;
+
+		Property(String key, Object defaultValue) {
+			this.key = key;
+			this.defaultValue = defaultValue;
+		}
+
+		@Override
+		double num(Relationship r) {
+			return toNum(value(r));
+		}
+
+		@Override
+		Object value(Relationship r) {
+			return r.getProperty(key, defaultValue);
+		}
+
+		@Override
+		boolean bool(Relationship r) {
+			return toBool(value(r));
+		}
+
+		@Override
+		boolean isNumeric() {
+			return false;
+		}
+	}
+
+	static final class HasProperty extends Expr {
+		private final String key;
+
+		HasProperty(String key) {
+			this.key = key;
+		}
+
+		@Override
+		double num(Relationship r) {
+			return r.hasProperty(key) ? 1 : 0;
+		}
+	}
+
+	static final class Type extends Expr {
+		@Override
+		double num(Relationship r) {
+			return Double.NaN;
+		}
+
+		@Override
+		Object value(Relationship r) {
+			return r.getType().name();
+		}
+
+		@Override
+		boolean bool(Relationship r) {
+			return true;
+		}
+
+		@Override
+		boolean isNumeric() {
+			return false;
+		}
+	}
+
+	static final class Unary extends Expr {
+		private final char op;
+		private final Expr a;
+
+		Unary(char op, Expr a) {
+			this.op = op;
+			this.a = a;
+		}
+
+		@Override
+		double num(Relationship r) {
+			if (op == '!') {
+				return a.bool(r) ? 0 : 1;
+			}
+			return -a.num(r);
+		}
+	}
+
+	static final class Binary extends Expr {
+		private static final List<String> OPS = Arrays.asList("+", "-", "*", "/", "%", "<", "<=", ">", ">=", "&&",
+				"||", "==", "!=");
+
+		private final int op;
+		private final Expr a;
+		private final Expr b;
+
+		Binary(String op, Expr a, Expr b) {
+			this.op = OPS.indexOf(op);
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		double num(Relationship r) {
+			switch (op) {
+			case 0:
+				return a.num(r) + b.num(r);
+			case 1:
+				return a.num(r) - b.num(r);
+			case 2:
+				return a.num(r) * b.num(r);
+			case 3:
+				return a.num(r) / b.num(r);
+			case 4:
+				return a.num(r) % b.num(r);
+			case 5:
+				return a.num(r) < b.num(r) ? 1 : 0;
+			case 6:
+				return a.num(r) <= b.num(r) ? 1 : 0;
+			case 7:
+				return a.num(r) > b.num(r) ? 1 : 0;
+			case 8:
+				return a.num(r) >= b.num(r) ? 1 : 0;
+			case 9:
+				return a.bool(r) && b.bool(r) ? 1 : 0;
+			case 10:
+				return a.bool(r) || b.bool(r) ? 1 : 0;
+			case 11:
+				return equal(r) ? 1 : 0;
+			case 12:
+				return equal(r) ? 0 : 1;
+			}
+			throw new IllegalStateException("unknown operator: " + op);
+		}
+
+		private boolean equal(Relationship r) {
+			if (a.isNumeric() && b.isNumeric()) {
+				return a.num(r) == b.num(r);
+			}
+			Object va = a.value(r);
+			Object vb = b.value(r);
+			if (va instanceof Number && vb instanceof Number) {
+				return ((Number) va).doubleValue() == ((Number) vb).doubleValue();
+			}
+			return Objects.equals(va, vb);
+		}
+	}
+
+	static final class Conditional extends Expr {
+		private final Expr test;
+		private final Expr yes;
+		private final Expr no;
+
+		Conditional(Expr test, Expr yes, Expr no) {
+			this.test = test;
+			this.yes = yes;
+			this.no = no;
+		}
+
+		@Override
+		double num(Relationship r) {
+			return test.bool(r) ? yes.num(r) : no.num(r);
+		}
+
+		@Override
+		Object value(Relationship r) {
+			return test.bool(r) ? yes.value(r) : no.value(r);
+		}
+
+		@Override
+		boolean isNumeric() {
+			return yes.isNumeric() && no.isNumeric();
+		}
+	}
+
+	static final class Function extends Expr {
+		private final String name;
+		private final Expr[] args;
+
+		Function(String name, Expr[] args) {
+			this.name = name;
+			this.args = args;
+		}
+
+		@Override
+		double num(Relationship r) {
+			switch (name) {
+			case "min":
+				return Math.min(args[0].num(r), args[1].num(r));
+			case "max":
+				return Math.max(args[0].num(r), args[1].num(r));
+			case "abs":
+				return Math.abs(args[0].num(r));
+			case "log":
+				return Math.log(args[0].num(r));
+			case "sqrt":
+				return Math.sqrt(args[0].num(r));
+			case "pow":
+				return Math.pow(args[0].num(r), args[1].num(r));
+			}
+			throw new IllegalStateException("unknown function: " + name);
+		}
+	}
+
+	private static class Parser {
+		private final String code;
+		private int pos = 0;
+		final Set<String> properties = new LinkedHashSet<>();
+
+		Parser(String code) {
+			this.code = code;
+		}
+
+		Expr parse() {
+			Expr e = expr();
+			skipWhitespace();
+			if (pos < code.length()) {
+				throw error("unexpected input");
+			}
+			return e;
+		}
+
+		private IllegalArgumentException error(String msg) {
+			return new IllegalArgumentException("invalid cost expression: " + msg + " at " + pos + ": " + code);
+		}
+
+		private void skipWhitespace() {
+			while (pos < code.length() && Character.isWhitespace(code.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private boolean eat(String token) {
+			skipWhitespace();
+			if (code.startsWith(token, pos)) {
+				pos += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if (!eat(token)) {
+				throw error("expected '" + token + "'");
+			}
+		}
+
+		private Expr expr() {
+			Expr test = or();
+			if (eat("?")) {
+				Expr yes = expr();
+				expect(":");
+				Expr no = expr();
+				return new Conditional(test, yes, no);
+			}
+			return test;
+		}
+
+		private Expr or() {
+			Expr e = and();
+			while (eat("||")) {
+				e = new Binary("||", e, and());
+			}
+			return e;
+		}
+
+		private Expr and() {
+			Expr e = cmp();
+			while (eat("&&")) {
+				e = new Binary("&&", e, cmp());
+			}
+			return e;
+		}
+
+		private Expr cmp() {
+			Expr e = add();
+			for (String op : new String[] { "==", "!=", "<=", ">=", "<", ">" }) {
+				if (eat(op)) {
+					return new Binary(op, e, add());
+				}
+			}
+			return e;
+		}
+
+		private Expr add() {
+			Expr e = mul();
+			while (true) {
+				if (eat("+")) {
+					e = new Binary("+", e, mul());
+				} else if (eat("-")) {
+					e = new Binary("-", e, mul());
+				} else {
+					return e;
+				}
+			}
+		}
+
+		private Expr mul() {
+			Expr e = unary();
+			while (true) {
+				if (eat("*")) {
+					e = new Binary("*", e, unary());
+				} else if (eat("/")) {
+					e = new Binary("/", e, unary());
+				} else if (eat("%")) {
+					e = new Binary("%", e, unary());
+				} else {
+					return e;
+				}
+			}
+		}
+
+		private Expr unary() {
+			if (eat("-")) {
+				return new Unary('-', unary());
+			}
+			if (eat("!")) {
+				return new Unary('!', unary());
+			}
+			return primary();
+		}
+
+		private Expr primary() {
+			skipWhitespace();
+			if (pos >= code.length()) {
+				throw error("unexpected end");
+			}
+			char c = code.charAt(pos);
+			if (eat("(")) {
+				Expr e = expr();
+				expect(")");
+				return e;
+			}
+			if (c == '\'' || c == '"') {
+				return new Constant(string(c));
+			}
+			if (Character.isDigit(c) || c == '.') {
+				return new Constant(number());
+			}
+			if (Character.isJavaIdentifierStart(c)) {
+				String name = identifier();
+				if (eat("(")) {
+					return function(name);
+				}
+				switch (name) {
+				case "true":
+					return new Constant(Boolean.TRUE);
+				case "false":
+					return new Constant(Boolean.FALSE);
+				case "type":
+					return new Type();
+				}
+				properties.add(name);
+				return new Property(name, null);
+			}
+			throw error("unexpected character '" + c + "'");
+		}
+
+		private Expr function(String name) {
+			List<Expr> args = new ArrayList<>();
+			if (!eat(")")) {
+				do {
+					args.add(expr());
+				} while (eat(","));
+				expect(")");
+			}
+			switch (name) {
+			case "has":
+				String has = propertyName(args, 1);
+				properties.add(has);
+				return new HasProperty(has);
+			case "prop":
+				String key = propertyName(args, 2);
+				if (!(args.get(1) instanceof Constant)) {
+					throw error("expected constant default value");
+				}
+				properties.add(key);
+				return new Property(key, ((Constant) args.get(1)).value);
+			case "abs":
+			case "log":
+			case "sqrt":
+				arity(name, args, 1);
+				break;
+			case "min":
+			case "max":
+			case "pow":
+				arity(name, args, 2);
+				break;
+			default:
+				throw error("unknown function: " + name);
+			}
+			return new Function(name, args.toArray(new Expr[args.size()]));
+		}
+
+		private void arity(String name, List<Expr> args, int n) {
+			if (args.size() != n) {
+				throw error(name + " expects " + n + " arguments");
+			}
+		}
+
+		private String propertyName(List<Expr> args, int n) {
+			if (args.size() != n) {
+				throw error("expected " + n + " arguments");
+			}
+			Expr e = args.get(0);
+			if (e instanceof Property) { // has(weight)
+				properties.remove(((Property) e).key);
+				return ((Property) e).key;
+			}
+			if (e instanceof Constant && ((Constant) e).value instanceof String) { // has('weight')
+				return (String) ((Constant) e).value;
+			}
+			throw error("expected property name");
+		}
+
+		private String identifier() {
+			int start = pos;
+			while (pos < code.length() && Character.isJavaIdentifierPart(code.charAt(pos))) {
+				pos++;
+			}
+			return code.substring(start, pos);
+		}
+
+		private Double number() {
+			int start = pos;
+			while (pos < code.length()
+					&& (Character.isDigit(code.charAt(pos)) || code.charAt(pos) == '.' || code.charAt(pos) == 'e' || code
+							.charAt(pos) == 'E')) {
+				pos++;
+			}
+			try {
+				return Double.valueOf(code.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw error("invalid number");
+			}
+		}
+
+		private String string(char quote) {
+			int start = ++pos;
+			while (pos < code.length() && code.charAt(pos) != quote) {
+				pos++;
+			}
+			if (pos >= code.length()) {
+				throw error("unterminated string");
+			}
+			return code.substring(start, pos++);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * process wide pool of script engines with an evaluated cost function, keyed by the hash of the script text. An
+ * engine is exclusively checked out by a single request at a time, such that the engines don't need to be thread
+ * safe, and returned to the pool afterwards to keep its compiled and warmed up state.
+ *
+ * @author sam
+ *
+ */
+public class CostScriptPool {
+	public static final CostScriptPool INSTANCE = new CostScriptPool(32, 4);
+
+	private final int maxScripts;
+	private final int maxIdlePerScript;
+	private final ScriptEngineManager manager = new ScriptEngineManager();
+
+	private final Map<String, Entry> entries;
+
+	public CostScriptPool(final int maxScripts, int maxIdlePerScript) {
+		this.maxScripts = maxScripts;
+		this.maxIdlePerScript = maxIdlePerScript;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > CostScriptPool.this.maxScripts;
+			}
+		};
+	}
+
+	/**
+	 * checks out an engine with the given script evaluated
+	 *
+	 * @throws ScriptException
+	 *             if the script can't be compiled
+	 */
+	public Lease checkOut(String script) throws ScriptException {
+		Entry entry;
+		String key = hash(script);
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry == null || !entry.script.equals(script)) {
+				entry = new Entry(script);
+				entries.put(key, entry);
+			}
+		}
+		ScriptEngine engine = entry.idle.poll();
+		if (engine == null) {
+			engine = compile(entry);
+		} else {
+			entry.reused.incrementAndGet();
+		}
+		return new Lease(entry, engine);
+	}
+
+	private ScriptEngine compile(Entry entry) throws ScriptException {
+		long start = System.nanoTime();
+		ScriptEngine engine;
+		synchronized (manager) {
+			engine = manager.getEngineByName("JavaScript");
+		}
+		if (engine instanceof Compilable) {
+			CompiledScript compiled = ((Compilable) engine).compile(entry.script);
+			compiled.eval();
+		} else {
+			engine.eval(entry.script);
+		}
+		entry.compiles.incrementAndGet();
+		entry.compileNanos.addAndGet(System.nanoTime() - start);
+		return engine;
+	}
+
+	private void checkIn(Entry entry, ScriptEngine engine) {
+		if (entry.idleCount() < maxIdlePerScript) {
+			entry.idle.offer(engine);
+		}
+	}
+
+	private static String hash(String script) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] h = digest.digest(script.getBytes(StandardCharsets.UTF_8));
+			StringBuilder b = new StringBuilder(h.length * 2);
+			for (byte bi : h) {
+				b.append(String.format("%02x", bi));
+			}
+			return b.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(script.hashCode()) + ':' + script.length();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("CostScriptPool [");
+		synchronized (entries) {
+			for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Entry> e = it.next();
+				b.append(e.getKey(), 0, 8).append(": ").append(e.getValue());
+				if (it.hasNext()) {
+					b.append(", ");
+				}
+			}
+		}
+		return b.append(']').toString();
+	}
+
+	private static final class Entry {
+		private final String script;
+		private final ConcurrentLinkedDeque<ScriptEngine> idle = new ConcurrentLinkedDeque<>();
+
+		private final AtomicLong compiles = new AtomicLong();
+		private final AtomicLong compileNanos = new AtomicLong();
+		private final AtomicLong reused = new AtomicLong();
+		private final AtomicLong evals = new AtomicLong();
+		private final AtomicLong evalNanos = new AtomicLong();
+
+		Entry(String script) {
+			this.script = script;
+		}
+
+		int idleCount() {
+			return idle.size();
+		}
+
+		@Override
+		public String toString() {
+			long c = compiles.get();
+			long e = evals.get();
+			return String.format("compiles=%d (avg %.2fms) reused=%d evals=%d (avg %.2fus)", c,
+					c == 0 ? 0. : compileNanos.get() / 1e6 / c, reused.get(), e, e == 0 ? 0. : evalNanos.get() / 1e3 / e);
+		}
+	}
+
+	/**
+	 * an exclusively checked out engine, needs to be {@link #close() closed} to return it to the pool
+	 */
+	public final class Lease implements AutoCloseable {
+		private final Entry entry;
+		private ScriptEngine engine;
+
+		Lease(Entry entry, ScriptEngine engine) {
+			this.entry = entry;
+			this.engine = engine;
+		}
+
+		public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+			long start = System.nanoTime();
+			try {
+				return ((Invocable) engine).invokeFunction(name, args);
+			} finally {
+				entry.evals.incrementAndGet();
+				entry.evalNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public void close() {
+			if (engine != null) {
+				checkIn(entry, engine);
+				engine = null;
+			}
+		}
+	}
+}
@@ -1,22 +1,26 @@
 package org.caleydo.neo4j.plugins.kshortestpaths;
 
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.NoSuchElementException;
 import java.util.function.Predicate;
 
-import org.apache.commons.lang.StringUtils;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.DirectionContraints;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IConstraint;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IPathConstraint;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.InlineRelationships;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.PathConstraints;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.PathExpander;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.traversal.BranchState;
-import org.neo4j.helpers.collection.FilteringIterable;
 import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.kernel.impl.api.RelationshipVisitor;
 
 /**
  * custom path expander
@@ -29,11 +33,32 @@ public class CustomPathExpander implements PathExpander<Object>, Predicate<Path>
 	private final IPathConstraint constraints;
 	private final InlineRelationships inline;
 	private final IConstraint perElem;
+	private final IConstraint perRel;
 	
-	private Set<Long> extraIgnoreNodes;
+	private PrimitiveLongSet extraIgnoreNodes;
+	/**
+	 * if set the materialized per node constraint, see {@link NodePrefilter}
+	 */
+	private NodeIdBitmap allowedNodes;
+	/**
+	 * if set, gets each expanded neighborhood to compute its costs in one batch
+	 */
+	private IBatchCostEvaluator batchCosts;
 	
-	private boolean debug = false;
+	private Trace trace = Trace.OFF;
 	private Iterable<FakeNode> extraNodes;
+	private final PrimitiveLongObjectMap<FakeNode> extraNodesById = Primitive.longObjectMap();
+
+	/**
+	 * upper bound of relationships kept in the per query neighborhood cache
+	 */
+	private static final int MAX_CACHED_RELATIONSHIPS = 1 << 21;
+	/**
+	 * resolved neighborhoods by node id, the expander lives as long as its query, such that the repeated expansions
+	 * of the spur searches just apply their ignored nodes
+	 */
+	private final PrimitiveLongObjectMap<Neighborhood> neighborhoods = Primitive.longObjectMap();
+	private int cachedRelationships = 0;
 
 	public CustomPathExpander(DirectionContraints directions, IPathConstraint constraints, InlineRelationships inline, Iterable<FakeNode> extraNodes, boolean acyclic) {
 		super();
@@ -43,13 +68,59 @@ public class CustomPathExpander implements PathExpander<Object>, Predicate<Path>
 		} else {
 			this.constraints = constraints;			
 		}
-		this.extraNodes = extraNodes;
+		setExtraNodes(extraNodes);
 		this.perElem = PathConstraints.getPerElemConstraint(constraints);
+		this.perRel = PathConstraints.getPerRelConstraint(constraints);
 		this.inline = inline;		
 	}
+
+	public void setAllowedNodes(NodeIdBitmap allowedNodes) {
+		this.allowedNodes = allowedNodes;
+		clearNeighborhoods();
+	}
+	
+	public void setBatchCosts(IBatchCostEvaluator batchCosts) {
+		this.batchCosts = batchCosts;
+	}
 	
 	public void setExtraNodes(Iterable<FakeNode> extraNodes) {
 		this.extraNodes = extraNodes;
+		extraNodesById.clear();
+		if (extraNodes != null) {
+			for (FakeNode n : extraNodes) {
+				extraNodesById.put(n.getId(), n);
+			}
+		}
+		clearNeighborhoods();
+	}
+
+	private void clearNeighborhoods() {
+		neighborhoods.clear();
+		cachedRelationships = 0;
+	}
+
+	/**
+	 * drops the cached neighborhoods, e.g. while the query is suspended, they are resolved again on demand
+	 */
+	public void releaseCaches() {
+		clearNeighborhoods();
+	}
+
+	/**
+	 * @return the approximate memory footprint: the cached neighborhoods, the members of the start / end nodes and
+	 *         the allowed nodes
+	 */
+	public long bytes() {
+		long r = 256 + cachedRelationships * 48L;
+		if (extraNodes != null) {
+			for (FakeNode n : extraNodes) {
+				r += 64 + n.getMemberCount() * 16L;
+			}
+		}
+		if (allowedNodes != null) {
+			r += allowedNodes.bytes();
+		}
+		return r;
 	}
 	
 	public IPathConstraint getConstraints() {
@@ -63,58 +134,41 @@ public class CustomPathExpander implements PathExpander<Object>, Predicate<Path>
 	
 	
 	public void setDebug(boolean debug) {
-		this.debug = debug;
+		setTrace(Trace.of(debug));
+	}
+	
+	public void setTrace(Trace trace) {
+		this.trace = trace;
 		if (this.inline != null) {
-			this.inline.setDebug(debug);
+			this.inline.setTrace(trace);
 		}
 	}
 	
 	
-	public void setExtraIgnoreNodes(Set<Long> extraIgnoreNodes) {
+	public void setExtraIgnoreNodes(PrimitiveLongSet extraIgnoreNodes) {
 		this.extraIgnoreNodes = extraIgnoreNodes;
 	}
 	
-	private void debug(Object ... args) {
-		if (this.debug) {
-			System.out.println(StringUtils.join(args,' '));
-		}
-	}
-	
 	@Override
 	public Iterable<Relationship> expand(final Path path, BranchState<Object> state) {
 		final Node endNode = path.endNode();
-		debug("resolve relationships: "+endNode);
-		for(FakeNode n : extraNodes) {
-			if (n.equals(endNode)) {
-				debug("found start/end: "+endNode);
-				return n.getRelationships();
-			}
+		final long endId = endNode.getId();
+		trace.log("resolve relationships:", endNode);
+		FakeNode fake = FakeGraphDatabase.isVirtual(endId) ? extraNodesById.get(endId) : null;
+		if (fake != null) {
+			trace.log("found start/end:", endNode);
+			return fake.getRelationships();
 		}
 		try {
-			Iterable<Relationship> base = getRelationships(endNode);
-			List<Relationship> s = Iterables.asList(new FilteringIterable<>(base, new Predicate<Relationship>() {
-				@Override
-				public boolean test(Relationship item) {
-					Node added = item.getOtherNode(endNode);
-					for(FakeNode n : extraNodes) { //keep fake nodes
-						if (n.equals(added)) {
-							debug("keep fake node: "+n);
-							return true;
-						}
-					}
-					if (!perElem.accept(added, item)) {
-						debug("test: "+added+" bad");
-						return false;
-					}				
-					if (extraIgnoreNodes != null && extraIgnoreNodes.contains(added.getId())) {
-						return false;
-					}
-					debug("accept: ",added,item);
-					return true;
+			Neighborhood n = neighborhoods.get(endId);
+			if (n == null) {
+				n = resolveNeighborhood(endNode);
+				if (cachedRelationships + n.size() <= MAX_CACHED_RELATIONSHIPS) {
+					neighborhoods.put(endId, n);
+					cachedRelationships += n.size();
 				}
-			}));
-			debug("RESOLVED: ",endNode, s.size());
-			return s;
+			}
+			return n.without(extraIgnoreNodes);
 		} catch (RuntimeException e) {
 			System.out.println("error"+e);
 			e.printStackTrace();
@@ -124,16 +178,109 @@ public class CustomPathExpander implements PathExpander<Object>, Predicate<Path>
 	}
 
 
+	/**
+	 * the filtered and inlined relationships of the given node, independent of the spur specific
+	 * {@link #setExtraIgnoreNodes(PrimitiveLongSet) ignored nodes}. Single pass over the relationships into a per
+	 * thread buffer, such that only the resulting neighborhood is allocated.
+	 */
+	private Neighborhood resolveNeighborhood(final Node endNode) {
+		Buffer buffer = BUFFER.get();
+		buffer.size = 0;
+		if (inline == null && directions.isBound() && GraphTokens.isReal(endNode)) {
+			resolveKernel(endNode, buffer);
+		} else {
+			resolveEmbedded(endNode, buffer);
+		}
+		Neighborhood n = new Neighborhood(buffer);
+		if (trace.isEnabled()) {
+			trace.log("RESOLVED:", endNode, n.size());
+		}
+		if (batchCosts != null) {
+			batchCosts.prefetch(n.all);
+		}
+		return n;
+	}
+
+	private void resolveEmbedded(final Node endNode, Buffer buffer) {
+		final long endId = endNode.getId();
+		for (Relationship item : getRelationships(endNode)) {
+			long other = item.getOtherNodeId(endId);
+			if (!extraNodesById.containsKey(other)) { //keep fake nodes
+				if (allowedNodes != null) {
+					if (!allowedNodes.contains(other) || !perRel.accept(item.getOtherNode(endNode), item)) {
+						if (trace.isEnabled()) {
+							trace.log("test: bad", other);
+						}
+						continue;
+					}
+				} else if (!perElem.accept(item.getOtherNode(endNode), item)) {
+					if (trace.isEnabled()) {
+						trace.log("test: bad", other);
+					}
+					continue;
+				}
+			}
+			if (trace.isEnabled()) {
+				trace.log("accept:", other, item);
+			}
+			buffer.add(item, other);
+		}
+	}
+
+	/**
+	 * kernel level version of {@link #resolveEmbedded(Node, Buffer)}: iterates the relationships by id and only
+	 * creates proxies for the ones passing the allowed nodes
+	 */
+	private void resolveKernel(final Node endNode, final Buffer buffer) {
+		final long endId = endNode.getId();
+		final GraphTokens tokens = directions.getTokens();
+		final IConstraint c = allowedNodes != null ? perRel : perElem;
+		final boolean checkConstraint = !PathConstraints.isTrue(c);
+		directions.visit(endId, new RelationshipVisitor<RuntimeException>() {
+			@Override
+			public void visit(long relId, int type, long startId, long endNodeId) {
+				long other = startId == endId ? endNodeId : startId;
+				if (allowedNodes != null && !allowedNodes.contains(other)) {
+					if (trace.isEnabled()) {
+						trace.log("test: bad", other);
+					}
+					return;
+				}
+				Relationship item = tokens.relationship(relId, startId, type, endNodeId);
+				if (checkConstraint && !c.accept(tokens.node(other), item)) {
+					if (trace.isEnabled()) {
+						trace.log("test: bad", other);
+					}
+					return;
+				}
+				if (trace.isEnabled()) {
+					trace.log("accept:", other, item);
+				}
+				buffer.add(item, other);
+			}
+		});
+		if (!extraNodesById.isEmpty()) {
+			for(FakeNode n : extraNodes) { // fake relationships back to the start/end
+				if (n.isMember(endNode.getId())) { // the relationship is created on first use
+					buffer.add(n.getRelationship(endNode), n.getId());
+				}
+			}
+		}
+	}
+
 	public Iterable<Relationship> getRelationships(final Node node) {
-		Iterable<Relationship> base = Iterables.asList(this.directions.filter(node));
-		for(FakeNode n : extraNodes) {
-			if (n.hasRelationship(node)) {
-				debug("add fake relationship back"+n+" "+node);
-				base = Iterables.concat(base, Iterables.iterable(n.getRelationship(node)));
+		Iterable<Relationship> base = this.directions.filter(node);
+		if (!extraNodesById.isEmpty()) {
+			for(FakeNode n : extraNodes) {
+				if (n.hasRelationship(node)) {
+					trace.log("add fake relationship back", n, node);
+					base = Iterables.concat(base, Iterables.iterable(n.getRelationship(node)));
+				}
 			}
 		}
-		debug("rels: "+Iterables.asList(base));
 		if (inline != null) {
+			base = Iterables.asList(base); // might be iterated twice
+			trace.log("rels:", base);
 			base = inline.inline(base, node);
 		}
 		//debug("inlined rels: "+Iterables.toList(base));
@@ -142,11 +289,13 @@ public class CustomPathExpander implements PathExpander<Object>, Predicate<Path>
 
 	@Override
 	public PathExpander<Object> reverse() {
-		debug("create reversed version", this.directions.reverse());
+		trace.log("create reversed version", this.directions);
 		CustomPathExpander p = new CustomPathExpander(this.directions.reverse(), this.constraints, inline, extraNodes, false);
-		p.setDebug(debug);
+		p.setTrace(trace);
 		p.setExtraIgnoreNodes(extraIgnoreNodes);
 		p.setExtraNodes(extraNodes);
+		p.setAllowedNodes(allowedNodes);
+		p.setBatchCosts(batchCosts);
 		return p;
 	}
 	
@@ -162,4 +311,87 @@ public class CustomPathExpander implements PathExpander<Object>, Predicate<Path>
 		return b.toString();
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * reusable per thread buffer for resolving a neighborhood
+	 */
+	private static final class Buffer {
+		private Relationship[] rels = new Relationship[64];
+		private long[] others = new long[64];
+		private int size;
+
+		void add(Relationship rel, long other) {
+			if (size == rels.length) {
+				rels = Arrays.copyOf(rels, size * 2);
+				others = Arrays.copyOf(others, size * 2);
+			}
+			rels[size] = rel;
+			others[size++] = other;
+		}
+	}
+
+	private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	/**
+	 * compact resolved neighborhood: the relationships and the ids of their other nodes
+	 */
+	private static final class Neighborhood {
+		private final Relationship[] rels;
+		private final long[] others;
+		private final List<Relationship> all;
+
+		Neighborhood(Buffer buffer) {
+			this.rels = Arrays.copyOf(buffer.rels, buffer.size);
+			this.others = Arrays.copyOf(buffer.others, buffer.size);
+			Arrays.fill(buffer.rels, 0, buffer.size, null);
+			this.all = Arrays.asList(this.rels);
+		}
+
+		int size() {
+			return rels.length;
+		}
+
+		/**
+		 * @return a lazy view skipping the relationships to the given nodes
+		 */
+		Iterable<Relationship> without(final PrimitiveLongSet ignoreNodes) {
+			if (ignoreNodes == null || ignoreNodes.isEmpty()) {
+				return all;
+			}
+			return new Iterable<Relationship>() {
+				@Override
+				public Iterator<Relationship> iterator() {
+					return new Iterator<Relationship>() {
+						private int next = skip(0);
+
+						private int skip(int i) {
+							while (i < rels.length && ignoreNodes.contains(others[i])) {
+								i++;
+							}
+							return i;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return next < rels.length;
+						}
+
+						@Override
+						public Relationship next() {
+							if (next >= rels.length) {
+								throw new NoSuchElementException();
+							}
+							Relationship r = rels[next];
+							next = skip(next + 1);
+							return r;
+						}
+					};
+				}
+			};
+		}
+	}
+}
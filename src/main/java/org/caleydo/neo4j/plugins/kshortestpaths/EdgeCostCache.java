@@ -0,0 +1,321 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * process wide cache of edge costs keyed by (cost profile, relationship id). The entries are stored in primitive
+ * open addressing tables (no boxing) that grow up to a memory cap, afterwards entries are evicted using the CLOCK
+ * algorithm. Entries of a relationship are invalidated when its properties change or it is deleted, a cost computed
+ * before an invalidation of its segment is dropped, see {@link #version(long)}.
+ *
+ * @author sam
+ *
+ */
+public class EdgeCostCache {
+	/**
+	 * memory cap of a cache in MB, configurable via the system property kshortestpaths.costCache.mb
+	 */
+	private static final long MAX_BYTES = Long.getLong("kshortestpaths.costCache.mb", 64) << 20;
+	private static final int SEGMENTS = 16;
+	private static final int ENTRY_BYTES = 8 + 4 + 8 + 1;
+	/**
+	 * the number of profile ids to remember, configurable via the system property kshortestpaths.costCache.profiles
+	 */
+	private static final int MAX_PROFILES = Integer.getInteger("kshortestpaths.costCache.profiles", 256);
+
+	private static final Map<GraphDatabaseService, EdgeCostCache> caches = new WeakHashMap<>();
+	/**
+	 * the least recently used profiles are forgotten, their entries age out of the tables as ids aren't reused
+	 */
+	private static final Map<String, Integer> profiles = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		private static final long serialVersionUID = -2920312046254349375L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_PROFILES;
+		}
+	};
+	private static int nextProfile = 1;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	public EdgeCostCache(long maxBytes) {
+		int maxCapacity = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(64, maxBytes / ENTRY_BYTES / SEGMENTS)));
+		for (int i = 0; i < SEGMENTS; ++i) {
+			segments[i] = new Segment(maxCapacity);
+		}
+	}
+
+	/**
+	 * @return the shared cache of the given database, the first call registers the invalidation handler
+	 */
+	public static EdgeCostCache of(FakeGraphDatabase db) {
+		GraphDatabaseService key = db.getDelegate();
+		synchronized (caches) {
+			EdgeCostCache cache = caches.get(key);
+			if (cache == null) {
+				cache = new EdgeCostCache(MAX_BYTES);
+				key.registerTransactionEventHandler(cache.new InvalidationHandler());
+				caches.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * @return a compact id for the given cost profile (e.g. cost function text)
+	 */
+	public static int profileId(String profile) {
+		synchronized (profiles) {
+			Integer id = profiles.get(profile);
+			if (id == null) {
+				id = nextProfile++;
+				if (nextProfile == 0) { // 0 marks an empty slot
+					nextProfile = 1;
+				}
+				profiles.put(profile, id);
+			}
+			return id;
+		}
+	}
+
+	private static int hash(long relId) {
+		long h = relId * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Segment segment(int hash) {
+		return segments[(hash >>> 28) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * @return the cached cost or NaN if not cached
+	 */
+	public double get(int profile, long relId) {
+		int h = hash(relId);
+		return segment(h).get(h, profile, relId);
+	}
+
+	public void put(int profile, long relId, double cost) {
+		int h = hash(relId);
+		segment(h).put(h, profile, relId, cost);
+	}
+
+	/**
+	 * @return the version of the given relationship's entries, to be read before computing its cost
+	 */
+	public long version(long relId) {
+		return segment(hash(relId)).getVersion();
+	}
+
+	/**
+	 * puts the given cost unless the entries were invalidated since the given {@link #version(long)}
+	 */
+	public void put(int profile, long relId, double cost, long version) {
+		int h = hash(relId);
+		segment(h).put(h, profile, relId, cost, version);
+	}
+
+	/**
+	 * removes the entries of all profiles for the given relationship
+	 */
+	public void invalidate(long relId) {
+		int h = hash(relId);
+		segment(h).invalidate(h, relId);
+	}
+
+	public long size() {
+		long s = 0;
+		for (Segment seg : segments) {
+			s += seg.size;
+		}
+		return s;
+	}
+
+	@Override
+	public String toString() {
+		return "EdgeCostCache [size=" + size() + "]";
+	}
+
+	private static final class Segment {
+		private final int maxCapacity;
+		private long[] rels;
+		/**
+		 * 0 marks an empty slot
+		 */
+		private int[] profiles;
+		private double[] costs;
+		private boolean[] referenced;
+		private int size = 0;
+		private int hand = 0;
+		/**
+		 * incremented by every invalidation
+		 */
+		private long version = 0;
+
+		Segment(int maxCapacity) {
+			this.maxCapacity = maxCapacity;
+			allocate(Math.min(maxCapacity, 1024));
+		}
+
+		private void allocate(int capacity) {
+			rels = new long[capacity];
+			profiles = new int[capacity];
+			costs = new double[capacity];
+			referenced = new boolean[capacity];
+		}
+
+		private int mask() {
+			return profiles.length - 1;
+		}
+
+		synchronized double get(int h, int profile, long relId) {
+			int mask = mask();
+			for (int i = h & mask; profiles[i] != 0; i = (i + 1) & mask) {
+				if (rels[i] == relId && profiles[i] == profile) {
+					referenced[i] = true;
+					return costs[i];
+				}
+			}
+			return Double.NaN;
+		}
+
+		synchronized long getVersion() {
+			return version;
+		}
+
+		synchronized void put(int h, int profile, long relId, double cost, long version) {
+			if (this.version == version) {
+				put(h, profile, relId, cost);
+			}
+		}
+
+		synchronized void put(int h, int profile, long relId, double cost) {
+			int mask = mask();
+			int i = h & mask;
+			for (; profiles[i] != 0; i = (i + 1) & mask) {
+				if (rels[i] == relId && profiles[i] == profile) {
+					costs[i] = cost;
+					referenced[i] = true;
+					return;
+				}
+			}
+			if ((size + 1) * 4 > profiles.length * 3) { // load factor 0.75
+				if (profiles.length < maxCapacity) {
+					grow();
+				} else {
+					evict();
+				}
+				put(h, profile, relId, cost);
+				return;
+			}
+			rels[i] = relId;
+			profiles[i] = profile;
+			costs[i] = cost;
+			referenced[i] = false;
+			size++;
+		}
+
+		private void grow() {
+			long[] oldRels = rels;
+			int[] oldProfiles = profiles;
+			double[] oldCosts = costs;
+			allocate(profiles.length * 2);
+			int mask = mask();
+			for (int j = 0; j < oldProfiles.length; ++j) {
+				if (oldProfiles[j] == 0) {
+					continue;
+				}
+				int i = hash(oldRels[j]) & mask;
+				while (profiles[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				rels[i] = oldRels[j];
+				profiles[i] = oldProfiles[j];
+				costs[i] = oldCosts[j];
+			}
+			hand = 0;
+		}
+
+		/**
+		 * CLOCK: evicts the first entry without a reference bit, clearing the bits on the way
+		 */
+		private void evict() {
+			int mask = mask();
+			while (true) {
+				hand = (hand + 1) & mask;
+				if (profiles[hand] == 0) {
+					continue;
+				}
+				if (referenced[hand]) {
+					referenced[hand] = false;
+				} else {
+					removeAt(hand);
+					return;
+				}
+			}
+		}
+
+		synchronized void invalidate(int h, long relId) {
+			version++;
+			int mask = mask();
+			int i = h & mask;
+			while (profiles[i] != 0) {
+				if (rels[i] == relId) {
+					removeAt(i); // another entry might have been shifted to i
+				} else {
+					i = (i + 1) & mask;
+				}
+			}
+		}
+
+		/**
+		 * backward shift deletion, keeps the probe sequences intact without tombstones
+		 */
+		private void removeAt(int i) {
+			int mask = mask();
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (profiles[j] == 0) {
+					break;
+				}
+				int k = hash(rels[j]) & mask;
+				// entry at j can stay if its home slot k lies cyclically in (i, j]
+				if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+					continue;
+				}
+				rels[i] = rels[j];
+				profiles[i] = profiles[j];
+				costs[i] = costs[j];
+				referenced[i] = referenced[j];
+				i = j;
+			}
+			profiles[i] = 0;
+			size--;
+		}
+	}
+
+	private final class InvalidationHandler extends TransactionEventHandler.Adapter<Void> {
+		@Override
+		public void afterCommit(TransactionData data, Void state) {
+			for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+				invalidate(entry.entity().getId());
+			}
+			for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+				invalidate(entry.entity().getId());
+			}
+			for (Relationship rel : data.deletedRelationships()) {
+				invalidate(rel.getId());
+			}
+		}
+	}
+}
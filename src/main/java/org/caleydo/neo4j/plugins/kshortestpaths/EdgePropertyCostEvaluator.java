@@ -6,13 +6,9 @@
 package org.caleydo.neo4j.plugins.kshortestpaths;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.script.Invocable;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
 import org.neo4j.graphalgo.CostEvaluator;
@@ -20,10 +16,15 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Relationship;
 
 /**
+ * the script needs to define <code>getCost(properties)</code>, where properties is an array of [key, value] pairs.
+ * It may additionally define <code>getCosts(neighborhood)</code>, getting an array of such property arrays and
+ * returning a <code>double[]</code> (e.g. via <code>Java.to(costs, 'double[]')</code>) or a JavaScript array of
+ * costs, which is used to evaluate a whole neighborhood with a single script call, see {@link #prefetch(List)}.
+ *
  * @author Christian
  *
  */
-public class EdgePropertyCostEvaluator implements CostEvaluator<Double> {
+public class EdgePropertyCostEvaluator implements IBatchCostEvaluator, AutoCloseable {
 
 	// private final Double baseCost;
 	// private final Map<String, Double> propertyCosts;
@@ -35,50 +36,108 @@ public class EdgePropertyCostEvaluator implements CostEvaluator<Double> {
 
 	private static final Double FIXED_COST = 1.0;
 
-	private ScriptEngine engine;
+	private CostScriptPool.Lease engine;
+	private CostExpression expression;
 	private boolean useFixedCost;
-	private Map<Long, Double> costCache = new HashMap<>();
+	private final EdgeCostCache costCache;
+	private int costProfile;
+	/**
+	 * whether the script defines getCosts, until proven otherwise
+	 */
+	private boolean batchScript = true;
 
 	public EdgePropertyCostEvaluator(String costFunction) {
+		this(costFunction, null);
+	}
+
+	/**
+	 * @param db
+	 *            if given, script costs are cached in the shared cost cache of the database
+	 */
+	public EdgePropertyCostEvaluator(String costFunction, FakeGraphDatabase db) {
+		this.costCache = db == null ? new EdgeCostCache(1 << 20) : EdgeCostCache.of(db);
 		if (costFunction == null) {
 			useFixedCost = true;
+		} else if (CostExpression.isCostExpression(costFunction)) {
+			expression = CostExpression.compile(costFunction);
+			useFixedCost = false;
 		} else {
-			ScriptEngineManager manager = new ScriptEngineManager();
-			engine = manager.getEngineByName("JavaScript");
-
 			// JavaScript code in a String. This code defines a script object 'obj'
 			// with one method called 'hello'.
 			// String script =
 			// "var propertyCosts = { size: { big: 2.0, small: 1.0 }, mood: { good: 2.0, bad: 1.0 } }; function getCost(properties) { var totalCost = 1.0; properties.forEach(function (propObject) { var property = propObject[0]; var value = propObject[1]; var propDef = propertyCosts[property]; if (typeof propDef != \"undefined\") { var cost = propDef[value]; if (typeof cost != \"undefined\") { totalCost += cost; } } }); return totalCost; }";
 			try {
-				engine.eval(costFunction);
+				engine = CostScriptPool.INSTANCE.checkOut(costFunction);
+				costProfile = EdgeCostCache.profileId(costFunction);
+				useFixedCost = false;
 			} catch (ScriptException e) {
 				e.printStackTrace();
+				useFixedCost = true;
 			}
-			useFixedCost = false;
 		}
 
 	}
 
+	/**
+	 * returns the script engine to the pool, the evaluator can't be used afterwards
+	 */
+	@Override
+	public void close() {
+		if (engine != null) {
+			engine.close();
+			engine = null;
+			useFixedCost = true;
+		}
+	}
+
+	/**
+	 * closes the given evaluator if it holds resources
+	 */
+	public static void release(CostEvaluator<Double> costEvaluator) {
+		if (costEvaluator instanceof EdgePropertyCostEvaluator) {
+			((EdgePropertyCostEvaluator) costEvaluator).close();
+		}
+	}
+
+	/**
+	 * creates the cost evaluator for the given cost function: a native {@link PropertyCostEvaluator} for
+	 * <code>profile:</code> descriptions, a materialized {@link EdgeWeightColumn} for <code>column:</code> ones,
+	 * otherwise a script / expression based one
+	 */
+	public static CostEvaluator<Double> of(String costFunction, FakeGraphDatabase db) {
+		if (EdgeWeightColumn.isColumn(costFunction)) {
+			return EdgeWeightColumn.of(costFunction, db);
+		}
+		if (PropertyCostEvaluator.isProfile(costFunction)) {
+			return PropertyCostEvaluator.parse(costFunction, db.tokens());
+		}
+		return new EdgePropertyCostEvaluator(costFunction, db);
+	}
+
 	@Override
 	public Double getCost(Relationship relationship, Direction direction) {
 
 		if (useFixedCost) {
 			return FIXED_COST;
+		} else if (expression != null) {
+			return expression.cost(relationship);
 		} else {
 
-			Double c = costCache.get(relationship.getId());
-			if (c != null)
-				return c;
+			final boolean cacheable = GraphTokens.isReal(relationship);
+			long version = 0;
+			if (cacheable) {
+				double c = costCache.get(costProfile, relationship.getId());
+				if (!Double.isNaN(c))
+					return c;
+				version = costCache.version(relationship.getId());
+			}
 			// evaluate script
 			try {
 
 				// evaluate script
 
-				// javax.script.Invocable is an optional interface.
-				// Check whether your script engine implements or not!
-				// Note that the JavaScript engine implements Invocable interface.
-				Invocable inv = (Invocable) engine;
+				// the engine is exclusively checked out from the pool for this evaluator
+				CostScriptPool.Lease inv = engine;
 
 				// invoke the global function named "hello"
 
@@ -94,16 +153,12 @@ public class EdgePropertyCostEvaluator implements CostEvaluator<Double> {
 
 				// String[][] properties = { { "size", "big" }, { "size", "big" } };
 
-				List<Object[]> properties = new ArrayList<Object[]>();
-
-				for (String property : relationship.getPropertyKeys()) {
-					properties.add(new Object[] { property, relationship.getProperty(property) });
-				}
-
-				Object cost = inv.invokeFunction("getCost", new Object[] { properties.toArray() });
+				Object cost = inv.invokeFunction("getCost", new Object[] { properties(relationship) });
 
 				if (cost instanceof Double) {
-					costCache.put(relationship.getId(), (Double) cost);
+					if (cacheable) {
+						costCache.put(costProfile, relationship.getId(), (Double) cost, version);
+					}
 					return (Double) cost;
 				}
 			} catch (ScriptException e) {
@@ -115,4 +170,65 @@ public class EdgePropertyCostEvaluator implements CostEvaluator<Double> {
 			return FIXED_COST;
 		}
 	}
+
+	private static Object[] properties(Relationship relationship) {
+		List<Object[]> properties = new ArrayList<Object[]>();
+
+		for (String property : relationship.getPropertyKeys()) {
+			properties.add(new Object[] { property, relationship.getProperty(property) });
+		}
+		return properties.toArray();
+	}
+
+	/**
+	 * evaluates the uncached costs of the given relationships with a single <code>getCosts</code> call, if the
+	 * script defines it, and puts them into the cost cache
+	 */
+	@Override
+	public void prefetch(List<Relationship> relationships) {
+		if (engine == null || !batchScript || relationships.size() < 2) {
+			return;
+		}
+		List<Relationship> missing = new ArrayList<>(relationships.size());
+		List<Object> neighborhood = new ArrayList<>(relationships.size());
+		long[] versions = new long[relationships.size()];
+		for (Relationship r : relationships) {
+			if (GraphTokens.isReal(r) && Double.isNaN(costCache.get(costProfile, r.getId()))) {
+				versions[missing.size()] = costCache.version(r.getId());
+				missing.add(r);
+				neighborhood.add(properties(r));
+			}
+		}
+		if (missing.size() < 2) {
+			return;
+		}
+		try {
+			Object costs = engine.invokeFunction("getCosts", new Object[] { neighborhood.toArray() });
+			for (int i = 0; i < missing.size(); ++i) {
+				double c = costAt(costs, i);
+				if (!Double.isNaN(c)) {
+					costCache.put(costProfile, missing.get(i).getId(), c, versions[i]);
+				}
+			}
+		} catch (NoSuchMethodException e) {
+			batchScript = false;
+		} catch (ScriptException e) {
+			e.printStackTrace();
+			batchScript = false;
+		}
+	}
+
+	private static double costAt(Object costs, int i) {
+		Object c = null;
+		if (costs instanceof double[]) {
+			double[] cs = (double[]) costs;
+			return i < cs.length ? cs[i] : Double.NaN;
+		} else if (costs instanceof List<?>) {
+			List<?> cs = (List<?>) costs;
+			c = i < cs.size() ? cs.get(i) : null;
+		} else if (costs instanceof Map<?, ?>) { // script array mirror
+			c = ((Map<?, ?>) costs).get(String.valueOf(i));
+		}
+		return c instanceof Number ? ((Number) c).doubleValue() : Double.NaN;
+	}
 }
@@ -0,0 +1,271 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphalgo.CostEvaluator;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * materialized edge weights of a cost function that only depends on relationship properties (a cost expression or
+ * profile): a dense float column indexed by relationship id, filled once in the background and kept current from
+ * transaction events. Missing or invalidated entries (NaN) are computed on demand.
+ *
+ * usage: <code>costFunction=column:profile:{...}</code> or <code>costFunction=column:expr:...</code>
+ *
+ * at most kshortestpaths.columns.max (system property, default 8) columns are kept per database, the least recently
+ * used one is dropped.
+ *
+ * @author sam
+ *
+ */
+public class EdgeWeightColumn {
+	public static final String PREFIX = "column:";
+
+	private static final int CHUNK_BITS = 20;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int MAX_COLUMNS = Integer.getInteger("kshortestpaths.columns.max", 8);
+
+	private static final Map<GraphDatabaseService, LinkedHashMap<String, EdgeWeightColumn>> columns = new WeakHashMap<>();
+
+	private final String costFunction;
+	private final RefreshHandler handler = new RefreshHandler();
+	private volatile float[][] chunks = new float[0][];
+	/**
+	 * relationships changed while the initial build is running, null once it is done
+	 */
+	private PrimitiveLongSet changedWhileBuilding = Primitive.longSet();
+	/**
+	 * incremented by every invalidation, an on demand cost computed before is outdated
+	 */
+	private long epoch = 0;
+	private volatile boolean dropped = false;
+
+	private EdgeWeightColumn(String costFunction) {
+		this.costFunction = costFunction;
+	}
+
+	public static boolean isColumn(String costFunction) {
+		return costFunction != null && costFunction.startsWith(PREFIX);
+	}
+
+	/**
+	 * @return a cost evaluator reading from the materialized column of the given cost function, which is created
+	 *         (and built in the background) on first use
+	 */
+	public static CostEvaluator<Double> of(String costFunction, FakeGraphDatabase db) {
+		String spec = costFunction.substring(PREFIX.length());
+		if (!CostExpression.isCostExpression(spec) && !PropertyCostEvaluator.isProfile(spec)) {
+			throw new IllegalArgumentException("only cost expressions and profiles can be materialized: " + spec);
+		}
+		GraphDatabaseService key = db.getDelegate();
+		EdgeWeightColumn column;
+		synchronized (columns) {
+			LinkedHashMap<String, EdgeWeightColumn> m = columns.get(key);
+			if (m == null) {
+				m = new LinkedHashMap<>(16, 0.75f, true);
+				columns.put(key, m);
+			}
+			column = m.get(spec);
+			if (column == null) {
+				column = new EdgeWeightColumn(spec);
+				m.put(spec, column);
+				key.registerTransactionEventHandler(column.handler);
+				column.startBuild(key);
+				for (Iterator<EdgeWeightColumn> it = m.values().iterator(); m.size() > MAX_COLUMNS;) {
+					it.next().drop(key);
+					it.remove();
+				}
+			}
+		}
+		return column.new View(EdgePropertyCostEvaluator.of(spec, db));
+	}
+
+	private void startBuild(final GraphDatabaseService db) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				build(db);
+			}
+		}, "EdgeWeightColumn build");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	private void build(GraphDatabaseService db) {
+		try (Transaction tx = db.beginTx()) {
+			CostEvaluator<Double> cost = EdgePropertyCostEvaluator.of(costFunction, new FakeGraphDatabase(db));
+			for (Relationship r : db.getAllRelationships()) {
+				if (dropped) {
+					break;
+				}
+				set(r.getId(), cost.getCost(r, Direction.OUTGOING).floatValue());
+			}
+			tx.success();
+		} catch (RuntimeException e) {
+			System.err.println("can't build edge weight column: " + costFunction);
+			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				// the build might have read outdated values
+				for (PrimitiveLongIterator it = changedWhileBuilding.iterator(); it.hasNext();) {
+					set(it.next(), Float.NaN);
+				}
+				changedWhileBuilding = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the cost or NaN if not (yet) materialized
+	 */
+	public float get(long relId) {
+		float[][] c = chunks;
+		int chunk = (int) (relId >>> CHUNK_BITS);
+		if (chunk >= c.length || c[chunk] == null) {
+			return Float.NaN;
+		}
+		return c[chunk][(int) (relId & CHUNK_MASK)];
+	}
+
+	private void set(long relId, float cost) {
+		if (dropped) {
+			return;
+		}
+		int chunk = (int) (relId >>> CHUNK_BITS);
+		float[][] c = chunks;
+		if (chunk >= c.length || c[chunk] == null) {
+			if (Float.isNaN(cost)) {
+				return;
+			}
+			c = ensureChunk(chunk);
+			if (c == null) { // dropped
+				return;
+			}
+		}
+		c[chunk][(int) (relId & CHUNK_MASK)] = cost;
+	}
+
+	private synchronized float[][] ensureChunk(int chunk) {
+		if (dropped) {
+			return null;
+		}
+		float[][] c = chunks;
+		if (chunk >= c.length) {
+			c = Arrays.copyOf(c, chunk + 1);
+		}
+		if (c[chunk] == null) {
+			float[] values = new float[CHUNK_SIZE];
+			Arrays.fill(values, Float.NaN);
+			c[chunk] = values;
+		}
+		chunks = c;
+		return c;
+	}
+
+	private synchronized long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * stores an on demand computed cost unless the relationship was invalidated since the given epoch
+	 */
+	private synchronized void set(long relId, float cost, long epoch) {
+		if (this.epoch == epoch) {
+			set(relId, cost);
+		}
+	}
+
+	private synchronized void invalidate(long relId) {
+		epoch++;
+		set(relId, Float.NaN);
+		if (changedWhileBuilding != null) {
+			changedWhileBuilding.add(relId);
+		}
+	}
+
+	/**
+	 * stops maintaining this column and frees its memory, views still in use compute all costs on demand
+	 */
+	private void drop(GraphDatabaseService db) {
+		try {
+			db.unregisterTransactionEventHandler(handler);
+		} catch (IllegalStateException e) {
+			// already unregistered
+		}
+		synchronized (this) {
+			dropped = true;
+			chunks = new float[0][];
+		}
+	}
+
+	/**
+	 * @return the number of columns of the given database
+	 */
+	static int size(GraphDatabaseService db) {
+		synchronized (columns) {
+			Map<String, EdgeWeightColumn> m = columns.get(db);
+			return m == null ? 0 : m.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EdgeWeightColumn [" + costFunction + ", chunks=" + chunks.length + "]";
+	}
+
+	/**
+	 * request local view, computing missing entries with its own evaluator
+	 */
+	private final class View implements CostEvaluator<Double> {
+		private final CostEvaluator<Double> compute;
+
+		View(CostEvaluator<Double> compute) {
+			this.compute = compute;
+		}
+
+		@Override
+		public Double getCost(Relationship relationship, Direction direction) {
+			if (!GraphTokens.isReal(relationship)) {
+				return compute.getCost(relationship, direction);
+			}
+			long id = relationship.getId();
+			float c = get(id);
+			if (Float.isNaN(c)) {
+				long epoch = getEpoch();
+				c = compute.getCost(relationship, direction).floatValue();
+				set(id, c, epoch);
+			}
+			return (double) c;
+		}
+	}
+
+	private final class RefreshHandler extends TransactionEventHandler.Adapter<Void> {
+		@Override
+		public void afterCommit(TransactionData data, Void state) {
+			for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+				invalidate(entry.entity().getId());
+			}
+			for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+				invalidate(entry.entity().getId());
+			}
+			for (Relationship rel : data.deletedRelationships()) {
+				invalidate(rel.getId());
+			}
+		}
+	}
+}
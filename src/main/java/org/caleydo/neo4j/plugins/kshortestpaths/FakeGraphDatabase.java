@@ -1,14 +1,16 @@
 package org.caleydo.neo4j.plugins.kshortestpaths;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIntMap;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.QueryExecutionException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
@@ -24,25 +26,98 @@ import org.neo4j.graphdb.traversal.BidirectionalTraversalDescription;
 import org.neo4j.graphdb.traversal.TraversalDescription;
 
 
+/**
+ * wraps a database to resolve the virtual nodes and relationships of a request, too. Virtual entities live in their
+ * own id space marked by {@link #VIRTUAL}, such that real ids are passed through without a registry lookup.
+ *
+ * @author sam
+ *
+ */
 public class FakeGraphDatabase implements GraphDatabaseService {
+	/**
+	 * marker bit of virtual ids, never set for real store ids
+	 */
+	public static final long VIRTUAL = 1L << 62;
+	/**
+	 * marker bit of virtual relationship ids, such that they never overlap the virtual node ids
+	 */
+	private static final long VIRTUAL_RELATIONSHIP = 1L << 61;
+
 	private GraphDatabaseService w;
-	
-	private Map<Long, PropertyContainer> fakes = new HashMap<>();
+
+	private final PrimitiveLongObjectMap<Node> fakeNodes = Primitive.longObjectMap();
+	private final PrimitiveLongObjectMap<Relationship> fakeRelationships = Primitive.longObjectMap();
+	/**
+	 * the index of the assigned virtual relationship ids by first and second end
+	 */
+	private final PrimitiveLongObjectMap<PrimitiveLongIntMap> relationshipIds = Primitive.longObjectMap();
+	private int nextRelationshipId = 0;
+	private GraphTokens tokens;
 
 	public FakeGraphDatabase(GraphDatabaseService w) {
 		super();
 		this.w = w;
 	}
+
+	public GraphDatabaseService getDelegate() {
+		return w;
+	}
+
+	/**
+	 * @return the token resolver of the wrapped database, created lazily once per instance
+	 */
+	public GraphTokens tokens() {
+		if (tokens == null) {
+			tokens = GraphTokens.of(w);
+		}
+		return tokens;
+	}
 	
+	/**
+	 * @return a proxy of the given real node, without checking its existence if possible
+	 */
+	public Node lazyNode(long id) {
+		GraphTokens t = tokens();
+		return t.canTraverse() ? t.node(id) : w.getNodeById(id);
+	}
+
+	public static boolean isVirtual(long id) {
+		return (id & VIRTUAL) != 0;
+	}
+
+	/**
+	 * @return the id of the i-th virtual node
+	 */
+	public static long virtualNodeId(int i) {
+		return VIRTUAL | i;
+	}
+
+	/**
+	 * @return the id of the virtual relationship between the given (real or virtual) nodes, assigned on first use
+	 */
+	public long virtualRelationshipId(long a, long b) {
+		PrimitiveLongIntMap ids = relationshipIds.get(a);
+		if (ids == null) {
+			ids = Primitive.longIntMap();
+			relationshipIds.put(a, ids);
+		}
+		int index = ids.get(b);
+		if (index == -1) { // the missing value of the primitive maps
+			index = nextRelationshipId++;
+			ids.put(b, index);
+		}
+		return VIRTUAL | VIRTUAL_RELATIONSHIP | index;
+	}
+
 	public void putFake(Relationship fake) {
-		fakes.put(fake.getId(), fake);
+		fakeRelationships.put(fake.getId(), fake);
 	}
 	public void putFake(Node fake) {
-		fakes.put(fake.getId(), fake);
+		fakeNodes.put(fake.getId(), fake);
 	}
 
 	public boolean hasFake(long id) {
-		return fakes.containsKey(id);
+		return isVirtual(id) && (fakeRelationships.containsKey(id) || fakeNodes.containsKey(id));
 	}
 
 	@Override
@@ -57,18 +132,26 @@ public class FakeGraphDatabase implements GraphDatabaseService {
 
 	@Override
 	public Node getNodeById(long id) {
-		if (hasFake(id)) {
-			return (Node) fakes.get(id);
+		if (!isVirtual(id)) {
+			return w.getNodeById(id);
 		}
-		return w.getNodeById(id);
+		Node n = fakeNodes.get(id);
+		if (n == null) {
+			throw new NotFoundException("virtual node " + id + " not found");
+		}
+		return n;
 	}
 
 	@Override
 	public Relationship getRelationshipById(long id) {
-		if (hasFake(id)) {
-			return (Relationship) fakes.get(id);
+		if (!isVirtual(id)) {
+			return w.getRelationshipById(id);
+		}
+		Relationship r = fakeRelationships.get(id);
+		if (r == null) {
+			throw new NotFoundException("virtual relationship " + id + " not found");
 		}
-		return w.getRelationshipById(id);
+		return r;
 	}
 
 	@Override
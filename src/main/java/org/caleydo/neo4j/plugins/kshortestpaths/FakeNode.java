@@ -1,10 +1,15 @@
 package org.caleydo.neo4j.plugins.kshortestpaths;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
@@ -20,13 +25,19 @@ public class FakeNode implements Node {
 	private final FakeGraphDatabase db;
 	private final RelationshipType onlyType = RelationshipType.withName("FAKE");
 	private final Direction onlyDir;
-	private Map<Long,Relationship> rels;
+	/**
+	 * the connected nodes, the fake relationships to them are created lazily
+	 */
+	private final PrimitiveLongSet members = Primitive.longSet();
+	private final PrimitiveLongObjectMap<Relationship> rels = Primitive.longObjectMap();
 
 	public FakeNode(long id, FakeGraphDatabase db,Direction onlyDir, Iterator<Node> nodes) {
 		this.id = id;
 		this.db = db;
 		this.onlyDir = onlyDir;
-		this.rels = create(nodes);
+		while (nodes.hasNext()) {
+			members.add(nodes.next().getId());
+		}
 	}
 
 	@Override
@@ -36,7 +47,23 @@ public class FakeNode implements Node {
 
 	@Override
 	public Iterable<Relationship> getRelationships() {
-		return rels.values();
+		return new Iterable<Relationship>() {
+			@Override
+			public Iterator<Relationship> iterator() {
+				final PrimitiveLongIterator it = members.iterator();
+				return new Iterator<Relationship>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Relationship next() {
+						return relationship(it.next(), null);
+					}
+				};
+			}
+		};
 	}
 
 	@Override
@@ -44,25 +71,49 @@ public class FakeNode implements Node {
 		return db;
 	}
 
-	protected Map<Long,Relationship> create(Iterator<Node> nodes) {
-		Map<Long,Relationship> r = new HashMap<Long, Relationship>();
-		Node n;
-		while (nodes.hasNext()) {
-			n = nodes.next();
-			FakeRelationship fake = new FakeRelationship(db, onlyType, onlyDir == Direction.OUTGOING ? this: n, onlyDir == Direction.INCOMING ? this: n, new HashMap<String, Object>());
-			r.put(n.getId(),fake);
-			db.putFake(fake);
+	/**
+	 * @return the fake relationship to the given member, created on first access
+	 */
+	private Relationship relationship(long member, Node n) {
+		Relationship r = rels.get(member);
+		if (r == null) {
+			if (n == null) {
+				n = db.lazyNode(member);
+			}
+			r = new FakeRelationship(db, FakeRelationship.id(db, this, n), onlyType, onlyDir == Direction.OUTGOING ? this: n, onlyDir == Direction.INCOMING ? this: n, new HashMap<String, Object>());
+			rels.put(member, r);
+			db.putFake(r);
+		}
+		return r;
+	}
+
+	public boolean isMember(long node) {
+		return members.contains(node);
+	}
+
+	public int getMemberCount() {
+		return members.size();
+	}
+
+	/**
+	 * @return the sorted ids of the connected nodes
+	 */
+	public long[] getMemberIds() {
+		long[] r = new long[members.size()];
+		int i = 0;
+		for (PrimitiveLongIterator it = members.iterator(); it.hasNext();) {
+			r[i++] = it.next();
 		}
-		// System.out.println(onlyDir+" "+r.values());
+		Arrays.sort(r);
 		return r;
 	}
 
 	public boolean hasRelationship(Node node) {
-		return rels.containsKey(node.getId());
+		return members.contains(node.getId());
 	}
 
 	public Relationship getRelationship(Node node) {
-		return rels.get(node.getId());
+		return members.contains(node.getId()) ? relationship(node.getId(), node) : null;
 	}
 
 
@@ -220,7 +271,7 @@ public class FakeNode implements Node {
 
 	@Override
 	public int getDegree() {
-		return rels.size();
+		return members.size();
 	}
 
 	@Override
@@ -23,27 +23,28 @@ public class FakeRelationship implements Relationship {
 	private final RelationshipType type;
 	private final long relId;
 
-	public FakeRelationship(GraphDatabaseService db, RelationshipType type,
+	public FakeRelationship(GraphDatabaseService db, long relId, RelationshipType type,
 			Node source, Node target, Map<String, Object> properties) {
 		super();
 		this.db = db;
-		this.relId = id(source, target);
+		this.relId = relId;
 		this.type = type;
 		this.source = source;
 		this.target = target;
 		this.properties = properties;
 	}
 
-	public static long id(Node s, Node t) {
+	/**
+	 * @return the id of the virtual relationship between the given nodes, unique within the given database
+	 */
+	public static long id(FakeGraphDatabase db, Node s, Node t) {
 		long a = s.getId();
 		long b = t.getId();
 		if (a > b) { //by convention smaller first for undirected ones
 			b = s.getId();
 			a = t.getId();
 		}
-		// heuristic combined both and negate
-		long id = (1 << 17)  + (a << 16) + b;
-		return id;
+		return db.virtualRelationshipId(a, b);
 	}
 
 	@Override
@@ -0,0 +1,303 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+import org.neo4j.collection.primitive.PrimitiveIntIterator;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.api.exceptions.index.IndexNotFoundKernelException;
+import org.neo4j.kernel.api.exceptions.schema.SchemaRuleNotFoundException;
+import org.neo4j.kernel.api.index.IndexDescriptor;
+import org.neo4j.kernel.api.index.InternalIndexState;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.api.RelationshipVisitor;
+import org.neo4j.kernel.impl.api.store.RelationshipIterator;
+import org.neo4j.kernel.impl.core.NodeManager;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * resolves label, relationship type and property key names to kernel token ids once per query plan and offers
+ * token based access to real nodes and relationships. Falls back gracefully (available = false) if the database
+ * doesn't expose the kernel.
+ *
+ * @author sam
+ *
+ */
+public class GraphTokens {
+	/**
+	 * bit set in a label mask if the element has a label / type that is not referenced by the mask
+	 */
+	public static final long OTHER = 1L << 63;
+	public static final int MAX_BITS = 63;
+
+	private final ThreadToStatementContextBridge bridge;
+	/**
+	 * creates proxies without touching the store, null if not available
+	 */
+	private final NodeManager nodeManager;
+
+	private final Map<String, Integer> labels = new HashMap<>();
+	private final Map<String, Integer> types = new HashMap<>();
+	private final Map<String, Integer> keys = new HashMap<>();
+
+	GraphTokens(ThreadToStatementContextBridge bridge, NodeManager nodeManager) {
+		this.bridge = bridge;
+		this.nodeManager = nodeManager;
+	}
+
+	public static GraphTokens of(GraphDatabaseService db) {
+		if (db instanceof GraphDatabaseAPI) {
+			DependencyResolver resolver = ((GraphDatabaseAPI) db).getDependencyResolver();
+			ThreadToStatementContextBridge bridge;
+			try {
+				bridge = resolver.resolveDependency(ThreadToStatementContextBridge.class);
+			} catch (RuntimeException e) {
+				System.err.println("can't resolve kernel access, using embedded api: " + e);
+				return new GraphTokens(null, null);
+			}
+			NodeManager nodeManager = null;
+			try {
+				nodeManager = resolver.resolveDependency(NodeManager.class);
+			} catch (RuntimeException e) {
+				System.err.println("can't resolve node manager, traversing with the embedded api: " + e);
+			}
+			return new GraphTokens(bridge, nodeManager);
+		}
+		return new GraphTokens(null, null);
+	}
+
+	public boolean isAvailable() {
+		return bridge != null;
+	}
+
+	/**
+	 * @return whether relationships can be traversed at kernel level, see {@link #visitRelationships}
+	 */
+	public boolean canTraverse() {
+		return bridge != null && nodeManager != null;
+	}
+
+	/**
+	 * @return whether a transaction is bound to the current thread, token ids can just be resolved within one
+	 */
+	public boolean inTransaction() {
+		return bridge != null && bridge.hasTransaction();
+	}
+
+	/**
+	 * @return whether the transaction of the current thread has uncommitted changes, which structures built from
+	 *         committed state don't reflect. True if unknown.
+	 */
+	public boolean hasTransactionChanges() {
+		if (bridge == null) {
+			return true;
+		}
+		KernelTransaction tx = bridge.getKernelTransactionBoundToThisThread(false);
+		if (tx == null) {
+			return false;
+		}
+		return !(tx instanceof TxStateHolder) || ((TxStateHolder) tx).hasTxStateWithChanges();
+	}
+
+	/**
+	 * @return whether the given element is a real one, i.e. exists in the store and can be accessed by id
+	 */
+	public static boolean isReal(PropertyContainer c) {
+		return !(c instanceof FakeNode || c instanceof FakeRelationship);
+	}
+
+	public int labelId(String name) {
+		Integer id = labels.get(name);
+		if (id != null) {
+			return id;
+		}
+		try (Statement s = bridge.get()) {
+			return cache(labels, name, s.readOperations().labelGetForName(name));
+		}
+	}
+
+	public int relationshipTypeId(String name) {
+		Integer id = types.get(name);
+		if (id != null) {
+			return id;
+		}
+		try (Statement s = bridge.get()) {
+			return cache(types, name, s.readOperations().relationshipTypeGetForName(name));
+		}
+	}
+
+	public int propertyKeyId(String name) {
+		Integer id = keys.get(name);
+		if (id != null) {
+			return id;
+		}
+		try (Statement s = bridge.get()) {
+			return cache(keys, name, s.readOperations().propertyKeyGetForName(name));
+		}
+	}
+
+	private static int cache(Map<String, Integer> m, String name, int id) {
+		if (id >= 0) { // not existing tokens might be created later
+			m.put(name, id);
+		}
+		return id;
+	}
+
+	/**
+	 * computes the label mask of the given node, the i-th bit is set if the node has the label ids[i], {@link #OTHER}
+	 * is set if it has any other label
+	 */
+	public long labelMask(Node node, int[] ids) {
+		try (Statement s = bridge.get()) {
+			PrimitiveIntIterator it = s.readOperations().nodeGetLabels(node.getId());
+			long mask = 0;
+			while (it.hasNext()) {
+				mask |= toBit(it.next(), ids);
+			}
+			return mask;
+		} catch (EntityNotFoundException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * computes the type mask of the given relationship, see {@link #labelMask(Node, int[])}
+	 */
+	public long typeMask(Relationship rel, int[] ids) {
+		return toBit(relationshipTypeIdOf(rel), ids);
+	}
+
+	public int relationshipTypeIdOf(Relationship rel) {
+		final int[] type = new int[] { -1 };
+		try (Statement s = bridge.get()) {
+			ReadOperations ops = s.readOperations();
+			ops.relationshipVisit(rel.getId(), new RelationshipVisitor<RuntimeException>() {
+				@Override
+				public void visit(long relId, int typeId, long startNode, long endNode) {
+					type[0] = typeId;
+				}
+			});
+		} catch (EntityNotFoundException e) {
+			// ignore
+		}
+		return type[0];
+	}
+
+	/**
+	 * reads the given properties of a real relationship in a single statement
+	 *
+	 * @param target
+	 *            filled with the values or null if not set
+	 */
+	public void relationshipProperties(long relId, int[] keyIds, Object[] target) {
+		try (Statement s = bridge.get()) {
+			ReadOperations ops = s.readOperations();
+			for (int i = 0; i < keyIds.length; ++i) {
+				target[i] = keyIds[i] < 0 ? null : ops.relationshipGetProperty(relId, keyIds[i]);
+			}
+		} catch (EntityNotFoundException e) {
+			Arrays.fill(target, null);
+		}
+	}
+
+	/**
+	 * visits the relationships of the given node in a single statement without creating any proxies
+	 *
+	 * @param typeIds
+	 *            the relationship types to visit, null for all
+	 */
+	public void visitRelationships(long nodeId, Direction dir, int[] typeIds, RelationshipVisitor<RuntimeException> visitor) {
+		try (Statement s = bridge.get()) {
+			ReadOperations ops = s.readOperations();
+			RelationshipIterator it = typeIds == null ? ops.nodeGetRelationships(nodeId, dir) : ops.nodeGetRelationships(
+					nodeId, dir, typeIds);
+			while (it.hasNext()) {
+				it.relationshipVisit(it.next(), visitor);
+			}
+		} catch (EntityNotFoundException e) {
+			// deleted meanwhile
+		}
+	}
+
+	/**
+	 * @return a relationship proxy of already visited data, without a store access
+	 */
+	public Relationship relationship(long id, long startNode, int typeId, long endNode) {
+		return nodeManager.newRelationshipProxy(id, startNode, typeId, endNode);
+	}
+
+	/**
+	 * @return a lazy node proxy, without a store access
+	 */
+	public Node node(long id) {
+		return nodeManager.newNodeProxyById(id);
+	}
+
+	public long countNodes() {
+		try (Statement s = bridge.get()) {
+			return s.readOperations().nodesGetCount();
+		}
+	}
+
+	public long countNodes(int labelId) {
+		try (Statement s = bridge.get()) {
+			return s.readOperations().countsForNode(labelId);
+		}
+	}
+
+	/**
+	 * estimates the number of nodes an equality seek on the given schema index will return
+	 *
+	 * @return the estimate or -1 if there is no such online index
+	 */
+	public long estimateIndexSeek(int labelId, int propertyKeyId) {
+		if (labelId < 0 || propertyKeyId < 0) {
+			return -1;
+		}
+		try (Statement s = bridge.get()) {
+			ReadOperations ops = s.readOperations();
+			IndexDescriptor index = ops.indexGetForLabelAndPropertyKey(labelId, propertyKeyId);
+			if (ops.indexGetState(index) != InternalIndexState.ONLINE) {
+				return -1;
+			}
+			double selectivity = ops.indexUniqueValuesSelectivity(index);
+			if (selectivity <= 0) {
+				return ops.indexSize(index);
+			}
+			return (long) Math.ceil(1. / selectivity);
+		} catch (SchemaRuleNotFoundException | IndexNotFoundKernelException e) {
+			return -1;
+		}
+	}
+
+	public void visitNodesWithLabel(int labelId, LongConsumer visitor) {
+		try (Statement s = bridge.get()) {
+			PrimitiveLongIterator it = s.readOperations().nodesGetForLabel(labelId);
+			while (it.hasNext()) {
+				visitor.accept(it.next());
+			}
+		}
+	}
+
+	private static long toBit(int id, int[] ids) {
+		for (int i = 0; i < ids.length; ++i) {
+			if (ids[i] == id) {
+				return 1L << i;
+			}
+		}
+		return OTHER;
+	}
+}
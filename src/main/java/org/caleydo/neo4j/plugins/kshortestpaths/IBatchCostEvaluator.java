@@ -0,0 +1,14 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.List;
+
+import org.neo4j.graphalgo.CostEvaluator;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * cost evaluator that can compute the costs of a whole neighborhood at once, such that the following
+ * {@link #getCost} calls are served from its cache
+ */
+public interface IBatchCostEvaluator extends CostEvaluator<Double> {
+	void prefetch(List<Relationship> relationships);
+}
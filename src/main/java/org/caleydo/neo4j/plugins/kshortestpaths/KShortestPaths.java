@@ -2,6 +2,7 @@ package org.caleydo.neo4j.plugins.kshortestpaths;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonWriter;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.DirectionContraints;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IPathConstraint;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.InlineRelationships;
@@ -14,6 +15,8 @@ import org.neo4j.server.rest.repr.Representation;
 import org.neo4j.server.rest.repr.ValueRepresentation;
 import org.parboiled.common.StringUtils;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.*;
 import java.util.function.Function;
 
@@ -28,68 +31,88 @@ public class KShortestPaths extends ServerPlugin {
 			@Description("Target node of the path") @Parameter(name = "target") String trgt,
 			@Description("The max number of paths to retrieve") @Parameter(name = "k") Integer k,
 			@Description("The max depth for a paths to retrieve") @Parameter(name = "l", optional = true) Integer l,
-			@Description("Javascript cost function to determine the cost of an edge") @Parameter(name = "costFunction", optional = true) String costFunction,
-			// @Description("Cost for an edge (>0)") @Parameter(name = "baseCost", optional = true) Double baseCost,
-			// @Description("Map of property costs (property name : cost)") @Parameter(name = "propertyCosts", optional
-			// = true) Map<String, Double> propertyCosts,
+			@Description("Javascript cost function to determine the cost of an edge, a cost expression prefixed with 'expr:', a cost profile prefixed with 'profile:' or one of both prefixed with 'column:' to materialize its edge weights") @Parameter(name = "costFunction", optional = true) String costFunction,
+			@Description("Cost for an edge (>0)") @Parameter(name = "baseCost", optional = true) Double baseCost,
+			@Description("JSON map of property costs (property name : cost or property name : { value : cost })") @Parameter(name = "propertyCosts", optional = true) String propertyCosts,
 			@Description("constraints") @Parameter(name = "constraints", optional = true) String constraints
 			) {
 
-		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
-		CustomPathExpander expander = toExpander(constraints, db, Collections.<FakeNode>emptyList());
-
-		Transaction tx = graphDb.beginTx();
-
-		CostEvaluator<Double> costEvaluator = new EdgePropertyCostEvaluator(costFunction);
-
-
-
-		//List<WeightedPath> paths = algo.run(db.inject(source), db.inject(target), k);
-
-        //Transaction tx = graphDb.beginTx();
-        Label conceptlabel = Label.label("concept");
-        Node source =  db.findNode(conceptlabel, "name",src);//"C0000052");
-        Node target = db.findNode(conceptlabel, "name",trgt);//"C0000176");
-
-
-		KShortestPathsAlgo2 algo = new KShortestPathsAlgo2(expander, expander,false);
-		Function<org.neo4j.graphdb.Path, org.neo4j.graphdb.Path> mapper = toMapper();
-
-		//KShortestPathsAlgo algo = new KShortestPathsAlgo(expander, costEvaluator);
-
-		List<Path> paths;
-		if(l == null)
-		{
-			 paths = algo.run2(db.inject(source), db.inject(target), k,5);
+		PathResultCache cache = PathResultCache.of(graphDb);
+		String key = PathResultCache.key("legacy", src, trgt, k, l, costFunction, baseCost, propertyCosts,
+				PathResultCache.normalize(constraints));
+		CompactPaths cached = cache.get(key);
+		if (cached != null) {
+			return ValueRepresentation.string(toJson(cached));
 		}
-		else
-		{
-			paths = algo.run2(db.inject(source), db.inject(target), k,l);
-		}
-
-
+		long version = cache.getVersion();
 
-		List<Map<String, Object>> pathList = new ArrayList<Map<String, Object>>(k);
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
 
-		for (Path path : paths) {
+		// a cost profile or function ranks the paths by their weight, otherwise they are enumerated by length
+		boolean weighted = baseCost != null || propertyCosts != null || !StringUtils.isEmpty(costFunction);
+		Label conceptlabel = Label.label("concept");
+		CompactPaths result = new CompactPaths();
+
+		CostEvaluator<Double> costEvaluator = null;
+		try (Transaction tx = graphDb.beginTx()) {
+			// binds the constraints to the token ids, requires the transaction
+			CustomPathExpander expander = toExpander(constraints, db, Collections.<FakeNode>emptyList());
+
+			Node source = NodeNameDictionary.findNode(db, conceptlabel, "name", src);
+			Node target = NodeNameDictionary.findNode(db, conceptlabel, "name", trgt);
+
+			expander.setAllowedNodes(NodePrefilter.plan(expander.getConstraints(), db, Trace.OFF));
+
+			List<? extends Path> paths;
+			if (weighted) {
+				if (baseCost != null || propertyCosts != null) {
+					costEvaluator = new PropertyCostEvaluator(baseCost == null ? 1.0 : baseCost, toMap(propertyCosts),
+							db.tokens());
+				} else {
+					costEvaluator = EdgePropertyCostEvaluator.of(costFunction, db);
+				}
+				paths = new KShortestPathsAlgo(expander, costEvaluator).run(db.inject(source), db.inject(target), k,
+						l == null ? 5 : l);
+			} else {
+				KShortestPathsAlgo2 algo = new KShortestPathsAlgo2(expander, expander, Trace.OFF);
+				paths = algo.run2(db.inject(source), db.inject(target), k, l == null ? 5 : l);
+			}
 
-			if(pathList.size() <= k)
-			{
-				pathList.add(getPathAsMap( path));
+			for (Path path : paths) {
+				if (result.size() <= k) {
+					result.add(path);
+				} else {
+					break;
+				}
 			}
-			else
-				break;
+			tx.success();
+		} finally {
+			EdgePropertyCostEvaluator.release(costEvaluator);
 		}
 
+		PathResultCache.Dependencies dependencies = PathResultCache.Dependencies.of(constraints, costFunction);
+		dependencies.addLookup(conceptlabel.name(), "name");
+		Map<String, Object> profile = propertyCosts != null ? toMap(propertyCosts) : null;
+		if (profile != null) {
+			for (String property : profile.keySet()) {
+				dependencies.addRelationshipProperty(property);
+			}
+		}
+		cache.put(key, result, dependencies, version);
 
+		return ValueRepresentation.string(toJson(result));
+	}
 
-		tx.success();
-		tx.close();
-
-		Gson gson = new Gson();
-
-		String resJSON = gson.toJson(pathList, pathList.getClass());
-		return ValueRepresentation.string(resJSON);
+	private static String toJson(CompactPaths paths) {
+		StringWriter out = new StringWriter();
+		try (JsonWriter writer = new JsonWriter(out)) {
+			writer.beginArray();
+			paths.writeTo(writer);
+			writer.endArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // can't happen for a string writer
+		}
+		return out.toString();
 	}
 	 static Function<org.neo4j.graphdb.Path, org.neo4j.graphdb.Path> toMapper() {
 		return new Function<org.neo4j.graphdb.Path, org.neo4j.graphdb.Path>() {
@@ -110,7 +133,9 @@ public class KShortestPaths extends ServerPlugin {
 		Map<String,Object> inline = (Map<String,Object>)(c == null ? null : c.get("inline"));
 
 		DirectionContraints d = new DirectionContraints(directions);
+		d.bind(db.tokens());
 		IPathConstraint path = PathConstraints.parse(constraints);
+		PathConstraints.bind(path, db.tokens());
 		InlineRelationships rel = InlineRelationships.of(inline, db);
 
 		return new CustomPathExpander(d, path, rel, extraNodes, c != null && c.get("acyclic") == Boolean.TRUE);
@@ -126,7 +151,7 @@ public class KShortestPaths extends ServerPlugin {
 	}
 
 
-	private static Map<String, Object> toMap(String filter) {
+	static Map<String, Object> toMap(String filter) {
 		if (StringUtils.isEmpty(filter)) {
 			return null;
 		}
@@ -6,6 +6,8 @@
 package org.caleydo.neo4j.plugins.kshortestpaths;
 
 import org.apache.commons.lang.time.StopWatch;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
 import org.neo4j.graphalgo.CostEvaluator;
 import org.neo4j.graphalgo.GraphAlgoFactory;
 import org.neo4j.graphalgo.PathFinder;
@@ -61,6 +63,10 @@ public class KShortestPathsAlgo {
 		this.expander = expander;
 		this.costEvaluator = new InvalidRelationshipCostEvaluator(costEvaluator);
 		this.originalCostEvaluator = costEvaluator;
+		if (costEvaluator instanceof IBatchCostEvaluator) {
+			// relaxing a node's edges then hits the cache filled with a single batch call
+			expander.setBatchCosts((IBatchCostEvaluator) costEvaluator);
+		}
 		this.shortestPathFinder = GraphAlgoFactory.dijkstra(expander, this.costEvaluator);
 		// System.out.println(expander);
 	}
@@ -69,122 +75,193 @@ public class KShortestPathsAlgo {
 	}
 
 	public List<WeightedPath> run(Node sourceNode, Node targetNode, int k, IPathReadyListener onPathReady, int depth) {
-		StopWatch w = new StopWatch();
-		w.start();
-
-		// Calculate shortest path first
-		List<WeightedPath> paths = new ArrayList<>(k);
-		profile("start", w);
-		WeightedPath shortestPath = shortestPathFinder.findSinglePath(sourceNode, targetNode);
-		if (shortestPath == null)
-			return paths;
-		profile("initial disjkra", w);
-		PriorityQueue<WeightedPath> pathCandidates = new PriorityQueue<WeightedPath>(20,
+		Search search = start(sourceNode, targetNode, depth);
+		search.next(k, onPathReady);
+		return search.getPaths();
+	}
+
+	/**
+	 * @return a search for the paths between the given nodes, run by {@link Search#next(int, IPathReadyListener)}
+	 */
+	public Search start(Node sourceNode, Node targetNode, int depth) {
+		return new Search(sourceNode, targetNode, depth);
+	}
+
+	/**
+	 * the state of a running search: the accepted paths and the candidate heap, such that it can be suspended after
+	 * k paths and resumed for the next ones
+	 */
+	public final class Search {
+		private final Node sourceNode;
+		private final Node targetNode;
+		private final int depth;
+
+		private final List<WeightedPath> paths = new ArrayList<>();
+		private final PriorityQueue<WeightedPath> pathCandidates = new PriorityQueue<WeightedPath>(20,
 				new Comparator<WeightedPath>() {
 					@Override
 					public int compare(WeightedPath o1, WeightedPath o2) {
 						return Double.compare(o1.weight(), o2.weight());
 					}
 				});
+		private final Set<Integer> pathCandidateHashes = new HashSet<>();
+		private boolean exhausted = false;
+
+		private Search(Node sourceNode, Node targetNode, int depth) {
+			this.sourceNode = sourceNode;
+			this.targetNode = targetNode;
+			this.depth = depth;
+		}
 
-		Set<Integer> pathCandidateHashes = new HashSet<>();
+		/**
+		 * @return all accepted paths so far
+		 */
+		public List<WeightedPath> getPaths() {
+			return paths;
+		}
 
-		if (onPathReady != null) {
-			onPathReady.onPathReady(shortestPath);
+		public boolean isExhausted() {
+			return exhausted;
 		}
-		paths.add(shortestPath);
 
-		pathCandidateHashes.add(generatePathHash(shortestPath, depth));
+		/**
+		 * @return the approximate memory footprint of the suspended state
+		 */
+		public long bytes() {
+			long r = 128;
+			for (WeightedPath p : paths) {
+				r += 64 + p.length() * 80L;
+			}
+			for (WeightedPath p : pathCandidates) {
+				r += 64 + p.length() * 80L;
+			}
+			return r + pathCandidateHashes.size() * 32L;
+		}
 
-		for (int i = 1; i < k; i++) {
+		/**
+		 * continues the search for the next k paths
+		 *
+		 * @return the found ones, less than k if there are no more
+		 */
+		public List<WeightedPath> next(int k, IPathReadyListener onPathReady) {
+			List<WeightedPath> found = new ArrayList<>(k);
+			if (exhausted || k <= 0) {
+				return found;
+			}
+			StopWatch w = new StopWatch();
+			w.start();
+
+			if (paths.isEmpty()) {
+				// Calculate shortest path first
+				profile("start", w);
+				WeightedPath shortestPath = shortestPathFinder.findSinglePath(sourceNode, targetNode);
+				if (shortestPath == null) {
+					exhausted = true;
+					return found;
+				}
+				profile("initial disjkra", w);
+				if (onPathReady != null) {
+					onPathReady.onPathReady(shortestPath);
+				}
+				paths.add(shortestPath);
+				found.add(shortestPath);
 
-			WeightedPath prevPath = paths.get(i - 1);
+				pathCandidateHashes.add(generatePathHash(shortestPath, depth));
+			}
 
-			for (Node spurNode : prevPath.nodes()) {
-				if (spurNode.getId() == prevPath.endNode().getId())
-					break;
+			while (found.size() < k) {
 
-				WeightedPath rootPath = getSubPathTo(prevPath, spurNode);
+				WeightedPath prevPath = paths.get(paths.size() - 1);
 
-				for (Path path : paths) {
-					Iterator<Relationship> pathIterator = path.relationships().iterator();
-					boolean containsRootPath = true;
+				for (Node spurNode : prevPath.nodes()) {
+					if (spurNode.getId() == prevPath.endNode().getId())
+						break;
 
-					// Test if the existing shortest path starts with the root path
-					for (Relationship relationship : rootPath.relationships()) {
-						if (!pathIterator.hasNext()) {
-							containsRootPath = false;
-							break;
+					WeightedPath rootPath = getSubPathTo(prevPath, spurNode);
+
+					for (Path path : paths) {
+						Iterator<Relationship> pathIterator = path.relationships().iterator();
+						boolean containsRootPath = true;
+
+						// Test if the existing shortest path starts with the root path
+						for (Relationship relationship : rootPath.relationships()) {
+							if (!pathIterator.hasNext()) {
+								containsRootPath = false;
+								break;
+							}
+
+							Relationship pathRelationship = pathIterator.next();
+							if (relationship.getId() != pathRelationship.getId()) {
+								containsRootPath = false;
+								break;
+							}
 						}
 
-						Relationship pathRelationship = pathIterator.next();
-						if (relationship.getId() != pathRelationship.getId()) {
-							containsRootPath = false;
-							break;
+						// If so, set edge weight of following edge in that path to infinity
+						if (containsRootPath) {
+							if (pathIterator.hasNext()) {
+								Relationship r= pathIterator.next();
+								costEvaluator.addInvalidRelationship(r);
+								//profile("invalid: "+r,w);
+							}
 						}
 					}
 
-					// If so, set edge weight of following edge in that path to infinity
-					if (containsRootPath) {
-						if (pathIterator.hasNext()) {
-							Relationship r= pathIterator.next();
-							costEvaluator.addInvalidRelationship(r);
-							//profile("invalid: "+r,w);
+					// Simulate removal of root path nodes (except spur node) by setting all their edge weights to
+					// infinity
+					PrimitiveLongSet badIds = Primitive.longSet();
+					for (Node rootPathNode : rootPath.nodes()) {
+						if (rootPathNode.getId() != spurNode.getId()) {
+							badIds.add(rootPathNode.getId());
+							//for (Relationship relationship : getRelationships(rootPathNode)) {
+							//	costEvaluator.addInvalidRelationship(relationship);
+							//}
+							//profile("invalids: "+rootPathNode.getRelationships(),w);
 						}
 					}
-				}
+					expander.setExtraIgnoreNodes(badIds);
+
+					profile("Find next path", w);
+					WeightedPath spurPath = shortestPathFinder.findSinglePath(spurNode, targetNode);
+					profile("Found next path", w);
+					if (spurPath != null && !Double.isInfinite(spurPath.weight())) {
+						WeightedPath pathCandidate = concatenate(rootPath, spurPath);
+
+						Integer pathHash = generatePathHash(pathCandidate, depth);
+
+						if (pathHash != null)
+						{
+							if (!pathCandidateHashes.contains(pathHash)) {
+								pathCandidates.add(pathCandidate);
+								pathCandidateHashes.add(pathHash);
+							}
+						}
 
-				// Simulate removal of root path nodes (except spur node) by setting all their edge weights to
-				// infinity
-				Set<Long> badIds = new HashSet<Long>();
-				for (Node rootPathNode : rootPath.nodes()) {
-					if (rootPathNode.getId() != spurNode.getId()) {
-						badIds.add(rootPathNode.getId());
-						//for (Relationship relationship : getRelationships(rootPathNode)) {
-						//	costEvaluator.addInvalidRelationship(relationship);
-						//}
-						//profile("invalids: "+rootPathNode.getRelationships(),w);
 					}
-				}
-				expander.setExtraIgnoreNodes(badIds);
-
-				profile("Find next path", w);
-				WeightedPath spurPath = shortestPathFinder.findSinglePath(spurNode, targetNode);
-				profile("Found next path", w);
-				if (spurPath != null && !Double.isInfinite(spurPath.weight())) {
-					WeightedPath pathCandidate = concatenate(rootPath, spurPath);
 
-					Integer pathHash = generatePathHash(pathCandidate, depth);
-
-					if (pathHash != null)
-					{
-						if (!pathCandidateHashes.contains(pathHash)) {
-							pathCandidates.add(pathCandidate);
-							pathCandidateHashes.add(pathHash);
-						}
-					}
+					// Restore edges
+					costEvaluator.clearInvalidRelationships();
+					expander.setExtraIgnoreNodes(null);
 
 				}
 
-				// Restore edges
-				costEvaluator.clearInvalidRelationships();
-				expander.setExtraIgnoreNodes(null);
-
-			}
+				if (pathCandidates.isEmpty()) {
+					exhausted = true;
+					break;
+				}
 
-			if (pathCandidates.isEmpty())
-				break;
+				WeightedPath nextBest = pathCandidates.poll();
+				profile("flush path", w);
+				if (onPathReady != null) {
+					onPathReady.onPathReady(nextBest);
+				}
+				paths.add(nextBest);
+				found.add(nextBest);
 
-			WeightedPath nextBest = pathCandidates.poll();
-			profile("flush path", w);
-			if (onPathReady != null) {
-				onPathReady.onPathReady(nextBest);
 			}
-			paths.add(nextBest);
-
+			profile("done", w);
+			return found;
 		}
-		profile("done", w);
-		return paths;
 	}
 
 	private static void profile(String label, StopWatch w) {
@@ -1,13 +1,15 @@
 package org.caleydo.neo4j.plugins.kshortestpaths;
 
-import org.apache.commons.lang.StringUtils;
 import org.neo4j.graphalgo.GraphAlgoFactory;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.PathExpander;
 
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -15,108 +17,245 @@ public class KShortestPathsAlgo2 {
 
 	private final PathExpander<?> expander;
 	private final Predicate<Path> pathAccepter;
-	private final boolean debug;
+	private Trace trace;
+	private RawPathCache.Traversal raw;
 
 
 
 	public KShortestPathsAlgo2(PathExpander<?> expander, Predicate<Path> pathAccepter, boolean debug) {
+		this(expander, pathAccepter, Trace.of(debug));
+	}
+
+	public KShortestPathsAlgo2(PathExpander<?> expander, Predicate<Path> pathAccepter, Trace trace) {
 		this.expander = expander;
 		this.pathAccepter = pathAccepter;
-		this.debug = debug;
+		this.trace = trace;
 
 
 	}
 
+	public void setTrace(Trace trace) {
+		this.trace = trace;
+	}
 
-
-	private void debug(Object ... args) {
-		if (this.debug) {
-			System.out.println(StringUtils.join(args,' '));
-		}
+	/**
+	 * @param raw
+	 *            the known paths of this traversal to reuse and extend or null, see {@link RawPathCache}
+	 */
+	public void setRawPaths(RawPathCache.Traversal raw) {
+		this.raw = raw;
 	}
 
 	public List<Path> run(Node start, Node end, int k, int minLength, int maxLength,
                           Function<Path, Path> mapper) {
-		debug("start", start.getId(), end.getId(), "k", k, "minLength", minLength, "maxLength", maxLength,
-				this.expander);
-		List<Path> result = new LinkedList<Path>();
-		List<Path> out = new LinkedList<Path>();
-
-		int checkedLength = -1;
-
-		if (minLength <= 0) {
-			// we search for the minimal one first
-			// first attempt: classic shortest path
-			for (Path path : GraphAlgoFactory.shortestPath(expander, maxLength).findAllPaths(start, end)) {
-				checkedLength = path.length(); // we have checked this length but may not accept it
-				path = mapper.apply(path);
-				debug("here", path);
-				if (!pathAccepter.test(path)) {
-					debug("dimiss", path);
-					continue; // dismiss result
-				}
-				debug("found", path);
-				result.add(path);
-				//if (onPathReady != null) {
-				//	onPathReady.onPathReady(new WeightedPathImpl(path.length(), path));
-				//}
-
-				// get only k paths
-				if (result.size() >= k) {
+		return start(start, end, minLength, maxLength, mapper).next(k, null);
+	}
 
-					break;
-				}
+	/**
+	 * @return an enumeration of the paths between the given nodes, run by {@link Enumeration#next(int, Consumer)}
+	 */
+	public Enumeration start(Node start, Node end, int minLength, int maxLength, Function<Path, Path> mapper) {
+		if (trace.isEnabled()) {
+			trace.log("start " + start.getId() + " " + end.getId() + " minLength " + minLength
+					+ " maxLength " + maxLength + " " + this.expander);
+		}
+		return new Enumeration(start, end, minLength, maxLength, mapper);
+	}
 
-			}
-			debug("ended", checkedLength, result);
-		} else {
-			// we have a fixed minimal path length
-			checkedLength = minLength - 1;
+	/**
+	 * the position of an enumeration: the current depth and the number of paths of this depth already enumerated.
+	 * Resuming it enumerates this depth again and skips them, which is cheap compared to the shorter depths.
+	 */
+	public final class Enumeration {
+		private final Node start;
+		private final Node end;
+		private final int maxLength;
+		private final Function<Path, Path> mapper;
+		/**
+		 * the current depth, -1 while enumerating the shortest paths
+		 */
+		private int depth;
+		private int consumed = 0;
+		private boolean exhausted = false;
+		/**
+		 * the traversed length of the shortest paths, -1 if there are none
+		 */
+		private int checkedLength = -1;
+
+		private Enumeration(Node start, Node end, int minLength, int maxLength, Function<Path, Path> mapper) {
+			this.start = start;
+			this.end = end;
+			this.maxLength = maxLength;
+			this.mapper = mapper;
+			// we search for the minimal one first or we have a fixed minimal path length
+			this.depth = minLength <= 0 ? -1 : minLength;
 		}
 
-		//If there are no results, there will never be any. If there are enough, then we just return them:
-		if (checkedLength < 0 || result.size() >= k) {
-			debug("abort search", checkedLength, result);
-			return result;
+		public boolean isExhausted() {
+			return exhausted;
 		}
 
-		//Now, we have some results, but not enough. All the resulting paths so far must have the same length (they are
-		//the shortest paths after all). We try with longer path length until we have enough:
-		for (int depth = checkedLength + 1; depth <= maxLength && result.size() < k; depth++) {
-			debug("check depth: ", depth);
-			for (Path path : GraphAlgoFactory.pathsWithLength(expander, depth).findAllPaths(start, end)) {
-				path = mapper.apply(path);
-				if (!pathAccepter.test(path)) {
-					debug("dimiss length " + depth, path);
-					continue; //dismiss result
+		/**
+		 * continues the enumeration for the next k accepted paths
+		 *
+		 * @param onPath
+		 *            notified about every accepted path or null
+		 * @return the found ones, less than k if there are no more
+		 */
+		public List<Path> next(int k, Consumer<Path> onPath) {
+			List<Path> result = new LinkedList<Path>();
+			if (exhausted || k <= 0) {
+				return result;
+			}
+
+			if (depth < 0) {
+				int skip = consumed;
+				// first attempt: classic shortest path
+				for (Iterator<Path> it = enumerate(-1); it.hasNext();) {
+					Path path = it.next();
+					if (skip > 0) { // enumerated before suspending
+						skip--;
+						continue;
+					}
+					consumed++;
+					trace.log("here", path);
+					if (!pathAccepter.test(path)) {
+						trace.log("dimiss", path);
+						continue; // dismiss result
+					}
+					trace.log("found", path);
+					result.add(path);
+					if (onPath != null) {
+						onPath.accept(path);
+					}
+
+					// get only k paths
+					if (result.size() >= k) {
+						return result;
+					}
+
+				}
+				if (trace.isEnabled()) {
+					trace.log("ended", checkedLength, result);
 				}
-				debug("found length " + depth, path);
-				result.add(path);
-				//if (onPathReady != null) {
-				//	onPathReady.onPathReady(new WeightedPathImpl(path.length(), path));
-				//}
-
-				 if (result.size() >= k) {
-				 break;
-				 }
+				//If there are no results, there will never be any
+				if (checkedLength < 0) {
+					exhausted = true;
+					if (trace.isEnabled()) {
+						trace.log("abort search", checkedLength, result);
+					}
+					return result;
+				}
+				depth = checkedLength + 1;
+				consumed = 0;
 			}
-		}
-		//debug("finally done: ", result);
-		int i = 0;
-		System.out.println("result:"+result);
-		while (i <= k && i < result.size())
-		{
-			//if ()
-			//System.out.println("val:"+result.get(i));
-				out.add(result.get(i));
-
-			i++;
-		}
 
+			//Now, we have some results, but not enough. All the resulting paths so far must have the same length (they are
+			//the shortest paths after all). We try with longer path length until we have enough:
+			for (; depth <= maxLength; depth++, consumed = 0) {
+				if (trace.isEnabled()) {
+					trace.log("check depth:", depth);
+				}
+				int skip = consumed;
+				for (Iterator<Path> it = enumerate(depth); it.hasNext();) {
+					Path path = it.next();
+					if (skip > 0) {
+						skip--;
+						continue;
+					}
+					consumed++;
+					if (!pathAccepter.test(path)) {
+						if (trace.isEnabled()) {
+							trace.log("dimiss length", depth, path);
+						}
+						continue; //dismiss result
+					}
+					if (trace.isEnabled()) {
+						trace.log("found length", depth, path);
+					}
+					result.add(path);
+					if (onPath != null) {
+						onPath.accept(path);
+					}
 
+					if (result.size() >= k) {
+						return result;
+					}
+				}
+			}
+			exhausted = true;
+			trace.log("result:", result);
+			return result;
+		}
+
+		/**
+		 * the mapped but not yet accepted paths of a depth or the shortest ones (-1). Served from the
+		 * {@link #setRawPaths(RawPathCache.Traversal) raw paths} as far as known, traversed and added to them
+		 * otherwise.
+		 */
+		private Iterator<Path> enumerate(final int depth) {
+			final RawPathCache.Segment segment = raw == null ? null : raw.segment(depth < 0 ? -maxLength : depth);
+			return new Iterator<Path>() {
+				private int i = 0;
+				private Iterator<Path> traversal;
+				private Path next;
+
+				@Override
+				public boolean hasNext() {
+					if (next != null) {
+						return true;
+					}
+					if (traversal == null && segment != null) {
+						next = raw.get(segment, i);
+						if (next != null) {
+							i++;
+							return true;
+						}
+						if (raw.isComplete(segment)) {
+							checkedLength = depth < 0 ? segment.getLength() : checkedLength;
+							return false;
+						}
+						trace.log("raw paths known:", i);
+					}
+					if (traversal == null) {
+						traversal = (depth < 0 ? GraphAlgoFactory.shortestPath(expander, maxLength)
+								: GraphAlgoFactory.pathsWithLength(expander, depth)).findAllPaths(start, end).iterator();
+						for (int j = 0; j < i && traversal.hasNext(); ++j) {
+							checked(traversal.next());
+						}
+					}
+					if (!traversal.hasNext()) {
+						if (segment != null) {
+							raw.complete(segment, i, checkedLength);
+						}
+						return false;
+					}
+					next = mapper.apply(checked(traversal.next()));
+					if (segment != null) {
+						raw.add(segment, i, next);
+					}
+					i++;
+					return true;
+				}
 
+				private Path checked(Path path) {
+					if (depth < 0) {
+						checkedLength = path.length(); // we have checked this length but may not accept it
+					}
+					return path;
+				}
 
-		return out;
+				@Override
+				public Path next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					Path r = next;
+					next = null;
+					return r;
+				}
+			};
+		}
 	}
 
 	public List<Path> run2(Node start, Node end, int k, int maxLength) {
@@ -1,6 +1,5 @@
 package org.caleydo.neo4j.plugins.kshortestpaths;
 
-import com.google.gson.Gson;
 import com.google.gson.stream.JsonWriter;
 import org.apache.commons.lang.StringUtils;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IConstraint;
@@ -8,6 +7,7 @@ import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IPathConstraint;
 import org.caleydo.neo4j.plugins.kshortestpaths.constraints.PathConstraints;
 import org.neo4j.graphalgo.CostEvaluator;
 import org.neo4j.graphalgo.WeightedPath;
+import org.neo4j.graphalgo.impl.util.WeightedPathImpl;
 import org.neo4j.graphdb.*;
 import org.neo4j.helpers.collection.Iterables;
 import org.neo4j.helpers.collection.Pair;
@@ -22,12 +22,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
-import static org.caleydo.neo4j.plugins.kshortestpaths.KShortestPaths.getPathAsMap;
-
 @Path("/kShortestPaths")
 public class KShortestPathsAsync {
+	private static final AtomicInteger running = new AtomicInteger();
+
 	private final GraphDatabaseService graphDb;
 
 	public KShortestPathsAsync(@Context GraphDatabaseService database) {
@@ -50,41 +52,61 @@ public class KShortestPathsAsync {
 			final @QueryParam("maxDepth") Integer maxDepth, final @QueryParam("constraints") String contraints,
 			@QueryParam("algorithm") final String algorithm,
 			@QueryParam("costFunction") final String costFunction, @QueryParam("debug") Boolean debugD) {
-		final boolean debug = debugD == Boolean.TRUE;
+		final Trace trace = Trace.of(debugD == Boolean.TRUE);
+		final String token = PathSessions.newToken();
 		StreamingOutput stream = new StreamingOutput() {
 			@Override
 			public void write(OutputStream os) throws IOException, WebApplicationException {
 				final JsonWriter writer = new JsonWriter(new OutputStreamWriter(os));
 				writer.beginArray();
 
-				Transaction tx = null;
+				QueryFlights.Flight flight = null;
+				running.incrementAndGet();
 				try {
-					tx = graphDb.beginTx();
-
-					FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
-					CustomPathExpander expander = KShortestPaths.toExpander(contraints, db ,Collections.<FakeNode>emptyList());
-					expander.setDebug(debug);
-
-					Pair<FakeNode, FakeNode> st = resolveNodes(from, to, expander.getConstraints(), db);
-					if (st == null || st.first() == null || st.other() == null) {
-						writer.value("missing start or end");
+					PathResultCache cache = PathResultCache.of(graphDb);
+					CacheWarmer warmer = CacheWarmer.of(graphDb);
+					CacheWarmer.Query query = new CacheWarmer.Query(from, to, k, minLength, maxDepth, contraints, algorithm,
+							costFunction);
+					String key = query.key();
+					CompactPaths cached = cache.get(key);
+					if (cached != null) {
+						trace.log("cache hit:", cached);
+						warmer.record(key, query, -1);
+						cached.writeTo(writer);
+						PathSessions.put(token, new PathSessions.Session(graphDb, query, cached.size(), null, 0));
 						return;
 					}
+					long version = cache.getVersion();
+					flight = QueryFlights.join(key);
+					if (!flight.isLeader()) { // an identical query is running
+						trace.log("following:", flight);
+						warmer.record(key, query, -1);
+						flight.replayTo(writer);
+						PathSessions.put(token, new PathSessions.Session(graphDb, query, flight.getPaths().size(), null, 0));
+						return;
+					}
+					final QueryFlights.Flight leading = flight;
+					long start = System.nanoTime();
 
-					expander.setExtraNodes(Iterables.iterable(st.first(), st.other()));
-
-					final Gson gson = new Gson();
 					IPathReadyListener listener = new IPathReadyListener() {
+						private boolean closed = false;
 
 						@Override
 						public void onPathReady(WeightedPath path) {
 							// System.out.println(path);
 							// System.out.println(path.relationships());
-							Map<String, Object> repr = getPathAsMap(path);
+							leading.add(path);
+							if (closed) {
+								return;
+							}
 							try {
-								gson.toJson(repr, Map.class, writer);
+								leading.getPaths().writeTo(writer, leading.getPaths().size() - 1);
 								writer.flush();
 							} catch (IOException e) {
+								if (leading.hasFollowers()) { // continue for them
+									closed = true;
+									return;
+								}
 								//can't write the connection was closed -> abort
 								System.out.println("connection closed");
 								e.printStackTrace();
@@ -93,8 +115,17 @@ public class KShortestPathsAsync {
 						}
 					};
 
-					runImpl(k, maxDepth, algorithm, costFunction, debug, st.first(), st.other(), listener, db,
-							expander, minLength);
+					PathSessions.Continuation search = query.search(graphDb, trace, listener);
+					if (search == null) {
+						writer.value("missing start or end");
+						return;
+					}
+					if (search.isExhausted()) {
+						search.close();
+					}
+					PathSessions.put(token, new PathSessions.Session(graphDb, query, leading.getPaths().size(), search, version));
+					cache.put(key, leading.getPaths(), query.getDependencies(), version);
+					warmer.record(key, query, System.nanoTime() - start);
 				} catch(ConnectionClosedException e) {
 					System.out.println("connection closed"+e);
 					e.printStackTrace();
@@ -104,10 +135,86 @@ public class KShortestPathsAsync {
 					e.printStackTrace();
 					e.printStackTrace(System.out);
 				}finally {
+					if (flight != null && flight.isLeader()) {
+						flight.finish();
+					}
+					running.decrementAndGet();
+					if (trace.isEnabled()) {
+						trace.writeTo(writer);
+					}
+					writer.endArray();
+					writer.flush();
+					writer.close();
+				}
+			}
+
+		};
+
+		return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON)
+				.header(PathSessions.CONTINUATION_HEADER, token).build();
+	}
+
+	/**
+	 * resumes the query of a continuation token, see {@link PathSessions#CONTINUATION_HEADER}, for its next k paths
+	 */
+	@GET
+	@Path("/continue/{token}")
+	public Response resume(@PathParam("token") final String token, final @QueryParam("k") Integer k,
+			@QueryParam("debug") Boolean debugD) {
+		final Trace trace = Trace.of(debugD == Boolean.TRUE);
+		StreamingOutput stream = new StreamingOutput() {
+			@Override
+			public void write(OutputStream os) throws IOException, WebApplicationException {
+				final JsonWriter writer = new JsonWriter(new OutputStreamWriter(os));
+				writer.beginArray();
+
+				PathSessions.Session session = PathSessions.take(token);
+				boolean keep = false;
+				Transaction tx = null;
+				running.incrementAndGet();
+				try {
+					if (session == null) {
+						writer.value("expired continuation");
+						return;
+					}
+					tx = graphDb.beginTx();
+					IPathReadyListener listener = new IPathReadyListener() {
+						@Override
+						public void onPathReady(WeightedPath path) {
+							try {
+								PathJsonWriter.write(writer, path);
+								writer.flush();
+							} catch (IOException e) {
+								//can't write the connection was closed -> abort
+								throw new ConnectionClosedException();
+							}
+						}
+					};
+					Integer k_ = k == null ? session.getQuery().getK() : k;
+					session.next(k_ == null ? 1 : k_.intValue(), trace, listener);
+					keep = true;
+				} catch(ConnectionClosedException e) {
+					System.out.println("connection closed"+e);
+				} catch(RuntimeException e) {
+					System.out.println("exception"+e);
+					e.printStackTrace();
+					e.printStackTrace(System.out);
+				} finally {
 					if (tx != null) {
 						tx.failure();
 						tx.close();
 					}
+					if (session != null) {
+						if (keep) {
+							PathSessions.put(token, session);
+						} else {
+							session.close();
+						}
+					}
+					running.decrementAndGet();
+					if (trace.isEnabled()) {
+						trace.writeTo(writer);
+					}
 					writer.endArray();
 					writer.flush();
 					writer.close();
@@ -116,7 +223,63 @@ public class KShortestPathsAsync {
 
 		};
 
-		return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+		return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON)
+				.header(PathSessions.CONTINUATION_HEADER, token).build();
+	}
+
+	/**
+	 * @return the number of currently running path queries, background work yields to them
+	 */
+	public static int getRunningQueries() {
+		return running.get();
+	}
+
+	/**
+	 * runs the given query in its own read transaction reporting the found paths to the listener
+	 *
+	 * @return the suspended search to resume for more paths, to close by the caller, or null if the start or end node
+	 *         is missing
+	 */
+	static PathSessions.Continuation search(GraphDatabaseService graphDb, Long from, Long to, Integer k, Integer minLength,
+			Integer maxDepth, String contraints, String algorithm, String costFunction, Trace trace,
+			IPathReadyListener listener) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			return start(graphDb, from, to, k, minLength, maxDepth, contraints, algorithm, costFunction, trace, listener);
+		} finally {
+			tx.failure();
+			tx.close();
+		}
+	}
+
+	/**
+	 * same as {@link #search} but within the current transaction
+	 */
+	static PathSessions.Continuation start(GraphDatabaseService graphDb, Long from, Long to, Integer k, Integer minLength,
+			Integer maxDepth, String contraints, String algorithm, String costFunction, Trace trace,
+			IPathReadyListener listener) {
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+		Map<String, Object> c = KShortestPaths.toMap(contraints);
+		CustomPathExpander expander = KShortestPaths.toExpander(c, db ,Collections.<FakeNode>emptyList());
+		expander.setTrace(trace);
+
+		Pair<FakeNode, FakeNode> st = resolveNodes(from, to, expander.getConstraints(), db);
+		if (st == null || st.first() == null || st.other() == null) {
+			return null;
+		}
+
+		RawPathCache rawPaths = RawPathCache.of(graphDb);
+		RawPathCache.Traversal raw = null;
+		if (rawPaths != null) {
+			raw = rawPaths.get(RawPathCache.key(st.first(), st.other(), c, expander.getConstraints()),
+					PathResultCache.of(graphDb).getVersion());
+		}
+
+		expander.setExtraNodes(Iterables.iterable(st.first(), st.other()));
+		expander.setAllowedNodes(NodePrefilter.plan(expander.getConstraints(), db, trace));
+
+		return runImpl(k, maxDepth, algorithm, costFunction, trace, st.first(), st.other(), listener, db, expander,
+				minLength, raw);
 	}
 
 	public static Pair<FakeNode, FakeNode> resolveNodes(Long from, Long to, IPathConstraint constraints,
@@ -141,29 +304,55 @@ public class KShortestPathsAsync {
 		} else {
 			r = resolveNodes(constraint, db);
 		}
-		return new FakeNode(dir == Direction.OUTGOING ? 1 << 20 : 3 << 20, db, dir, r);
+		return new FakeNode(FakeGraphDatabase.virtualNodeId(dir == Direction.OUTGOING ? 0 : 1), db, dir, r);
 	}
 
 	private static Iterator<Node> resolveNodes(IConstraint constraint, FakeGraphDatabase db) {
-		Iterator<Node> r;
-		StringBuilder b = new StringBuilder();
 		List<String> labels = PathConstraints.findAndLabels(constraint);
+		List<Pair<String, Object>> eqs = PathConstraints.findAndPropertyEqualities(constraint);
+		if (labels.size() == 1 && eqs.size() == 1 && PathConstraints.countAndTerms(constraint) == 2) {
+			// plain label and property lookup, served by the name dictionary or the schema index if there is one
+			Pair<String, Object> eq = eqs.get(0);
+			return NodeNameDictionary.findNodes(db, Label.label(labels.get(0)), eq.first(), eq.other());
+		}
+		// values are passed as parameters, such that the plan is cached per constraint shape
+		StringBuilder b = new StringBuilder();
+		Map<String, Object> params = new HashMap<>();
 		b.append("MATCH (n");
-		if (!labels.isEmpty()) {
-			b.append(':').append(StringUtils.join(labels,':'));
+		for (String label : labels) {
+			b.append(":`").append(label).append('`');
+		}
+		b.append(')');
+		StringBuilder where = new StringBuilder();
+		constraint.toCypher(where, "n", params);
+		if (where.length() > 0) {
+			b.append(" WHERE ").append(where);
 		}
-		b.append(") WHERE ");
-		constraint.toCypher(b, "n");
 		b.append(" RETURN n");
-		System.out.println(constraint+" "+b.toString());
-		r = db.execute(b.toString()).columnAs("n");
-		return r;
+		return db.execute(b.toString(), params).columnAs("n");
 	}
 
 
-	public static void runImpl(final Integer k, final Integer maxDepth, final String algorithm, final String costFunction, final boolean debug, FakeNode source,
+	/**
+	 * runs the search for the first k paths
+	 *
+	 * @return the suspended search to resume for more paths, to close by the caller
+	 */
+	public static PathSessions.Continuation runImpl(final Integer k, final Integer maxDepth, final String algorithm, final String costFunction, final Trace trace, FakeNode source,
  FakeNode target,
 			IPathReadyListener listener, FakeGraphDatabase db, CustomPathExpander expander, Integer minLength) {
+		return runImpl(k, maxDepth, algorithm, costFunction, trace, source, target, listener, db, expander, minLength,
+				null);
+	}
+
+	/**
+	 * @param raw
+	 *            the known paths of this traversal for the shortestPath enumeration or null, see {@link RawPathCache}
+	 */
+	public static PathSessions.Continuation runImpl(final Integer k, final Integer maxDepth, final String algorithm, final String costFunction, final Trace trace, FakeNode source,
+ FakeNode target,
+			IPathReadyListener listener, FakeGraphDatabase db, CustomPathExpander expander, Integer minLength,
+			RawPathCache.Traversal raw) {
 
 		Function<org.neo4j.graphdb.Path, org.neo4j.graphdb.Path> mapper = toMapper();
 
@@ -177,30 +366,86 @@ public class KShortestPathsAsync {
 												// only
 			runShortestPath = true;
 		}
-		List<Map<String, Object>> pathList = new ArrayList<Map<String, Object>>(k);
 
+		Suspended suspended = new Suspended(expander);
+		try {
+			if (runShortestPath) {
+				suspended.enumerator = new KShortestPathsAlgo2(expander, expander, trace);
+				suspended.enumerator.setRawPaths(raw);
+				suspended.enumeration = suspended.enumerator.start(source, target, minLength_, maxDepth_, mapper);
+			}
+			if (runDijsktra) {
+				suspended.costEvaluator = EdgePropertyCostEvaluator.of(costFunction, db);
+				KShortestPathsAlgo algo = new KShortestPathsAlgo(expander, suspended.costEvaluator);
+				suspended.search = algo.start(source, target, maxDepth);
+			}
+			suspended.next(k_, trace, listener);
+			return suspended;
+		} catch (RuntimeException e) {
+			suspended.close();
+			throw e;
+		}
+	}
 
-		List<org.neo4j.graphdb.Path> paths;
-
-		if (runShortestPath) {
-			KShortestPathsAlgo2 algo = new KShortestPathsAlgo2(expander, expander, debug);
-			algo.run(source, target, k_, minLength_, maxDepth_, mapper);
-			/*paths = algo.run2(source, target, k_, maxDepth);
+	/**
+	 * the suspended state of the algorithms run by {@link #runImpl}
+	 */
+	private static final class Suspended implements PathSessions.Continuation {
+		private final CustomPathExpander expander;
+		private KShortestPathsAlgo2 enumerator;
+		private KShortestPathsAlgo2.Enumeration enumeration;
+		private KShortestPathsAlgo.Search search;
+		private CostEvaluator<Double> costEvaluator;
+
+		public Suspended(CustomPathExpander expander) {
+			this.expander = expander;
+		}
 
-			for (org.neo4j.graphdb.Path path : paths) {
-				pathList.add(getPathAsMap( path));
+		@Override
+		public void next(int k, Trace trace, final IPathReadyListener listener) {
+			expander.setTrace(trace);
+			if (enumeration != null) {
+				enumerator.setTrace(trace);
+				enumeration.next(k, new Consumer<org.neo4j.graphdb.Path>() {
+					@Override
+					public void accept(org.neo4j.graphdb.Path path) {
+						listener.onPathReady(new WeightedPathImpl(path.length(), path));
+					}
+				});
+			}
+			if (search != null) {
+				List<WeightedPath> result = search.next(k, listener);
+				trace.log("dijkstra:", result);
+				trace.log("scripts:", CostScriptPool.INSTANCE);
 			}
-			Gson gson = new Gson();
+		}
+
+		@Override
+		public boolean isExhausted() {
+			return (enumeration == null || enumeration.isExhausted()) && (search == null || search.isExhausted());
+		}
+
+		@Override
+		public void suspend() {
+			expander.releaseCaches();
+		}
+
+		@Override
+		public long bytes() {
+			return 1024 + expander.bytes() + (search == null ? 0 : search.bytes());
+		}
 
-			String resJSON = gson.toJson(pathList, pathList.getClass());
-			System.out.println("hello");
-			System.out.println(pathList); */
+		@Override
+		public void close() {
+			if (costEvaluator != null) {
+				EdgePropertyCostEvaluator.release(costEvaluator);
+				costEvaluator = null;
+			}
 		}
-		if (runDijsktra) {
-			CostEvaluator<Double> costEvaluator = new EdgePropertyCostEvaluator(costFunction);
-			KShortestPathsAlgo algo = new KShortestPathsAlgo(expander, costEvaluator);
 
-			System.out.println(algo.run(source, target, k_, listener, maxDepth))	;
+		@Override
+		public String toString() {
+			return "Suspended [exhausted=" + isExhausted() + ", bytes=" + bytes() + "]";
 		}
 	}
 
@@ -217,7 +462,7 @@ public class KShortestPathsAsync {
 	@Path("/neighborsOf/{node}")
 	public Response neighborOf(@PathParam("node") final Long node, final @QueryParam("constraints") String contraints,
 			@QueryParam("debug") Boolean debugD) {
-		final boolean debug = debugD == Boolean.TRUE;
+		final Trace trace = Trace.of(debugD == Boolean.TRUE);
 		StreamingOutput stream = new StreamingOutput() {
 			@Override
 			public void write(OutputStream os) throws IOException, WebApplicationException {
@@ -231,19 +476,16 @@ public class KShortestPathsAsync {
 					FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
 					CustomPathExpander expander = KShortestPaths.toExpander(contraints, db,
 							Collections.<FakeNode> emptyList());
-					expander.setDebug(debug);
+					expander.setTrace(trace);
 
 					Node n = db.getNodeById(node.longValue());
 					if (n == null) {
 						writer.value("missing start or end");
 						return;
 					}
-					final Gson gson = new Gson();
 					for (Relationship r : expander.getRelationships(n)) {
-						Map<String, Object> repr = KShortestPaths.getNodeAsMap(r.getOtherNode(n));
-						repr.put("_edge", KShortestPaths.getRelationshipAsMap(r));
 						try {
-							gson.toJson(repr, Map.class, writer);
+							PathJsonWriter.writeNeighbor(writer, r.getOtherNode(n), r);
 							writer.flush();
 						} catch (IOException e) {
 							// can't write the connection was closed -> abort
@@ -265,6 +507,9 @@ public class KShortestPathsAsync {
 						tx.failure();
 						tx.close();
 					}
+					if (trace.isEnabled()) {
+						trace.writeTo(writer);
+					}
 					writer.endArray();
 					writer.flush();
 					writer.close();
@@ -279,7 +524,7 @@ public class KShortestPathsAsync {
 	@GET
 	@Path("/find")
 	public Response findNode(final @QueryParam("constraints") String contraints, @QueryParam("debug") Boolean debugD) {
-		final boolean debug = debugD == Boolean.TRUE;
+		final Trace trace = Trace.of(debugD == Boolean.TRUE);
 		StreamingOutput stream = new StreamingOutput() {
 			@Override
 			public void write(OutputStream os) throws IOException, WebApplicationException {
@@ -293,18 +538,16 @@ public class KShortestPathsAsync {
 					FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
 					CustomPathExpander expander = KShortestPaths.toExpander(contraints, db,
 							Collections.<FakeNode> emptyList());
-					expander.setDebug(debug);
+					expander.setTrace(trace);
 
 					Pair<IConstraint, IConstraint> c = PathConstraints
 							.getStartEndConstraints(expander.getConstraints());
 
 					Iterator<Node> nodes = resolveNodes(c.first(), db);
-					final Gson gson = new Gson();
 					while (nodes.hasNext()) {
 						Node n = nodes.next();
-						Map<String, Object> repr = KShortestPaths.getNodeAsMap(n);
 						try {
-							gson.toJson(repr, Map.class, writer);
+							PathJsonWriter.write(writer, n);
 							writer.flush();
 						} catch (IOException e) {
 							// can't write the connection was closed -> abort
@@ -326,6 +569,9 @@ public class KShortestPathsAsync {
 						tx.failure();
 						tx.close();
 					}
+					if (trace.isEnabled()) {
+						trace.writeTo(writer);
+					}
 					writer.endArray();
 					writer.flush();
 					writer.close();
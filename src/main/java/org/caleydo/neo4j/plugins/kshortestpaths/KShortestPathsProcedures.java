@@ -0,0 +1,153 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.neo4j.graphalgo.WeightedPath;
+import org.neo4j.graphalgo.impl.util.PathImpl;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import com.google.gson.Gson;
+
+/**
+ * stored procedures running the searches of {@link KShortestPathsAsync} for Bolt clients, e.g.
+ * <code>CALL kshortest.paths(a, b, 10, {maxDepth: 5, constraints: {dir: {to: 'out'}}}) YIELD path, weight</code>. The
+ * records are streamed lazily: the search is suspended between pages of growing size and continued while the client
+ * pulls.
+ *
+ * config keys: minLength, maxDepth, constraints (map or json string), algorithm and costFunction, see
+ * {@link KShortestPathsAsync#findGiven}
+ *
+ * @author sam
+ *
+ */
+public class KShortestPathsProcedures {
+	private static final int FIRST_PAGE = 8;
+	private static final int MAX_PAGE = 256;
+
+	/**
+	 * the database itself, the procedure scoped GraphDatabaseService doesn't support the event handlers the shared
+	 * caches register
+	 */
+	@Context
+	public GraphDatabaseAPI db;
+
+	@Procedure(name = "kshortest.paths", mode = Mode.READ)
+	@Description("kshortest.paths(source, target, k, config) - the k shortest paths from source to target, a null node is selected by the constraints")
+	public Stream<PathRecord> paths(@Name("source") Node source, @Name("target") Node target,
+			@Name(value = "k", defaultValue = "1") long k,
+			@Name(value = "config", defaultValue = "{}") Map<String, Object> config) {
+		Object constraints = config.get("constraints");
+		if (constraints instanceof Map) {
+			// the same number types as via http
+			constraints = new Gson().toJson(constraints);
+		}
+		PathIterator it = new PathIterator(k);
+		it.search = KShortestPathsAsync.start(db, source == null ? null : source.getId(),
+				target == null ? null : target.getId(), it.nextPage(), toInteger(config.get("minLength")),
+				toInteger(config.get("maxDepth")), (String) constraints, (String) config.get("algorithm"),
+				(String) config.get("costFunction"), Trace.OFF, it);
+		if (it.search == null) { // missing start or end
+			return Stream.empty();
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL),
+				false).onClose(it.search::close);
+	}
+
+	private static Integer toInteger(Object v) {
+		return v instanceof Number ? Integer.valueOf(((Number) v).intValue()) : null;
+	}
+
+	/**
+	 * @return the given path without the virtual start and end node
+	 */
+	static Path toReal(Path path) {
+		List<Node> nodes = Iterables.asList(path.nodes());
+		List<Relationship> rels = Iterables.asList(path.relationships());
+		int start = FakeGraphDatabase.isVirtual(nodes.get(0).getId()) ? 1 : 0;
+		int end = nodes.size() - (FakeGraphDatabase.isVirtual(nodes.get(nodes.size() - 1).getId()) ? 1 : 0);
+		if (start >= end) {
+			return null;
+		}
+		PathImpl.Builder b = new PathImpl.Builder(nodes.get(start));
+		for (Relationship rel : rels.subList(start, end - 1)) {
+			b = b.push(rel);
+		}
+		return b.build();
+	}
+
+	public static final class PathRecord {
+		public Path path;
+		public Double weight;
+
+		public PathRecord(Path path, double weight) {
+			this.path = path;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * the found paths, resuming the suspended search for the next page once the current one is consumed
+	 */
+	private static final class PathIterator implements Iterator<PathRecord>, IPathReadyListener {
+		private final ArrayDeque<PathRecord> page = new ArrayDeque<>();
+		private PathSessions.Continuation search;
+		private long remaining;
+		private int pageSize = FIRST_PAGE;
+
+		public PathIterator(long k) {
+			this.remaining = k;
+		}
+
+		int nextPage() {
+			int n = (int) Math.min(remaining, pageSize);
+			pageSize = Math.min(pageSize * 2, MAX_PAGE);
+			return n;
+		}
+
+		@Override
+		public void onPathReady(WeightedPath path) {
+			Path real = toReal(path);
+			if (real != null && remaining > 0) {
+				remaining--;
+				page.add(new PathRecord(real, path.weight()));
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (page.isEmpty() && remaining > 0 && !search.isExhausted()) {
+				search.next(nextPage(), Trace.OFF, this);
+			}
+			if (page.isEmpty()) {
+				search.close();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public PathRecord next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.poll();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.Arrays;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+
+/**
+ * compressed set of node ids in the style of a roaring bitmap: the ids are partitioned by their upper bits into
+ * chunks of 2^16 ids, sparse chunks are stored as sorted arrays, dense ones as plain bitmaps
+ *
+ * @author sam
+ *
+ */
+public class NodeIdBitmap {
+	private static final int ARRAY_MAX = 4096;
+
+	private final PrimitiveLongObjectMap<Object> chunks = Primitive.longObjectMap();
+	private long size = 0;
+
+	public void add(long id) {
+		long key = id >>> 16;
+		char low = (char) id;
+		Object chunk = chunks.get(key);
+		if (chunk == null) {
+			chunks.put(key, new ArrayChunk(low));
+			size++;
+			return;
+		}
+		if (chunk instanceof long[]) {
+			long[] bits = (long[]) chunk;
+			long old = bits[low >>> 6];
+			bits[low >>> 6] = old | (1L << low);
+			if (old != bits[low >>> 6]) {
+				size++;
+			}
+			return;
+		}
+		ArrayChunk a = (ArrayChunk) chunk;
+		int index = Arrays.binarySearch(a.values, 0, a.size, low);
+		if (index >= 0) {
+			return;
+		}
+		size++;
+		if (a.size < ARRAY_MAX) {
+			a.insert(-index - 1, low);
+		} else {
+			long[] bits = a.toBits();
+			bits[low >>> 6] |= (1L << low);
+			chunks.put(key, bits);
+		}
+	}
+
+	public boolean contains(long id) {
+		Object chunk = chunks.get(id >>> 16);
+		if (chunk == null) {
+			return false;
+		}
+		char low = (char) id;
+		if (chunk instanceof long[]) {
+			return (((long[]) chunk)[low >>> 6] & (1L << low)) != 0;
+		}
+		ArrayChunk a = (ArrayChunk) chunk;
+		return Arrays.binarySearch(a.values, 0, a.size, low) >= 0;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate memory footprint, the chunks are at most 8 KB bitmaps
+	 */
+	public long bytes() {
+		return chunks.size() * 64L + Math.min(size * 2, chunks.size() * 8192L);
+	}
+
+	@Override
+	public String toString() {
+		return "NodeIdBitmap [size=" + size + ", chunks=" + chunks.size() + "]";
+	}
+
+	private static final class ArrayChunk {
+		private char[] values;
+		private int size;
+
+		public ArrayChunk(char first) {
+			this.values = new char[] { first, 0, 0, 0 };
+			this.size = 1;
+		}
+
+		void insert(int index, char value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+			}
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = value;
+			size++;
+		}
+
+		long[] toBits() {
+			long[] bits = new long[1024];
+			for (int i = 0; i < size; ++i) {
+				bits[values[i] >>> 6] |= (1L << values[i]);
+			}
+			return bits;
+		}
+	}
+}
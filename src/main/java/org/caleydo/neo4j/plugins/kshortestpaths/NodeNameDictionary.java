@@ -0,0 +1,484 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.helpers.collection.Iterables;
+
+/**
+ * off-heap dictionary from the name of a node to its id for a label and property pair, e.g. concept.name. It is
+ * built in the background on first use and kept current from transaction events, until it is ready lookups fall back
+ * to the index. Names are stored as UTF-8 records in a direct buffer, indexed by an open addressing hash table of
+ * record offsets, such that a lookup is a single hash probe. Lookups within a transaction that has uncommitted changes
+ * use the index, as the dictionary just reflects committed state.
+ *
+ * the dictionaries to maintain are configured via the system property kshortestpaths.dictionary as comma separated
+ * list of <code>label.property</code>, by default <code>concept.name</code>
+ *
+ * @author sam
+ *
+ */
+public class NodeNameDictionary {
+	private static final String[] CONFIGURED = System.getProperty("kshortestpaths.dictionary", "concept.name").split(",");
+
+	public static final long MISSING = -1;
+	/**
+	 * the name is used by multiple nodes, the dictionary isn't ready yet or the caller's transaction has changes, use
+	 * the index instead
+	 */
+	public static final long UNKNOWN = -2;
+
+	private static final Map<GraphDatabaseService, Map<String, NodeNameDictionary>> dictionaries = new WeakHashMap<>();
+
+	/**
+	 * record: hash (int), length (int), node id (long), utf-8 bytes
+	 */
+	private static final int HEADER = 16;
+	/**
+	 * min number of records of removed names before they are reclaimed
+	 */
+	private static final int MIN_RECLAIM = 256;
+
+	private final Label label;
+	private final String property;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private ByteBuffer records = ByteBuffer.allocateDirect(1 << 16);
+	/**
+	 * per slot the record offset + 1, 0 for an empty slot
+	 */
+	private LongBuffer table = ByteBuffer.allocateDirect(8 << 10).asLongBuffer();
+	/**
+	 * the number of records, including the ones of removed names
+	 */
+	private int size = 0;
+	/**
+	 * the number of names with at least one node
+	 */
+	private int names = 0;
+	/**
+	 * the number of records of removed names, reclaimed once they are the majority
+	 */
+	private int removed = 0;
+	/**
+	 * the node ids of the names used by multiple nodes, such that the name is unique again once all but one are removed
+	 */
+	private final Map<String, PrimitiveLongSet> shared = new HashMap<>();
+	private volatile boolean ready = false;
+	/**
+	 * changes committed while the initial build is running, applied afterwards
+	 */
+	private List<Object[]> changedWhileBuilding = new ArrayList<>();
+
+	private NodeNameDictionary(Label label, String property) {
+		this.label = label;
+		this.property = property;
+	}
+
+	static boolean isConfigured(String label, String property) {
+		String key = label + '.' + property;
+		for (String c : CONFIGURED) {
+			if (c.trim().equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the shared dictionary of the given pair, created (and built in the background) on first use, or null
+	 *         if not configured
+	 */
+	public static NodeNameDictionary of(GraphDatabaseService db, String label, String property) {
+		if (!isConfigured(label, property)) {
+			return null;
+		}
+		if (db instanceof FakeGraphDatabase) {
+			db = ((FakeGraphDatabase) db).getDelegate();
+		}
+		String key = label + '.' + property;
+		synchronized (dictionaries) {
+			Map<String, NodeNameDictionary> m = dictionaries.get(db);
+			if (m == null) {
+				m = new HashMap<>();
+				dictionaries.put(db, m);
+			}
+			NodeNameDictionary dict = m.get(key);
+			if (dict == null) {
+				dict = new NodeNameDictionary(Label.label(label), property);
+				m.put(key, dict);
+				db.registerTransactionEventHandler(dict.new UpdateHandler());
+				dict.startBuild(db);
+			}
+			return dict;
+		}
+	}
+
+	/**
+	 * same as {@link GraphDatabaseService#findNode(Label, String, Object)} but served by the dictionary if possible
+	 */
+	public static Node findNode(FakeGraphDatabase db, Label label, String property, Object name) {
+		NodeNameDictionary dict = name instanceof String ? of(db, label.name(), property) : null;
+		long id = dict == null || db.tokens().hasTransactionChanges() ? UNKNOWN : dict.get((String) name);
+		if (id == UNKNOWN) {
+			return db.findNode(label, property, name);
+		}
+		return id == MISSING ? null : db.lazyNode(id);
+	}
+
+	/**
+	 * same as {@link GraphDatabaseService#findNodes(Label, String, Object)} but served by the dictionary if possible
+	 */
+	public static Iterator<Node> findNodes(FakeGraphDatabase db, Label label, String property, Object name) {
+		NodeNameDictionary dict = name instanceof String ? of(db, label.name(), property) : null;
+		long id = dict == null || db.tokens().hasTransactionChanges() ? UNKNOWN : dict.get((String) name);
+		if (id == UNKNOWN) {
+			return db.findNodes(label, property, name);
+		}
+		return id == MISSING ? Collections.<Node> emptyIterator() : Iterables.iterable(db.lazyNode(id)).iterator();
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return the node id, {@link #MISSING} or {@link #UNKNOWN}
+	 */
+	public long get(String name) {
+		if (!ready) {
+			return UNKNOWN;
+		}
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			int offset = find(key, hash(key));
+			return offset < 0 ? MISSING : records.getLong(offset + 8);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void startBuild(final GraphDatabaseService db) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				build(db);
+			}
+		}, "NodeNameDictionary build " + label.name() + '.' + property);
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	private void build(GraphDatabaseService db) {
+		try (Transaction tx = db.beginTx(); ResourceIterator<Node> nodes = db.findNodes(label)) {
+			while (nodes.hasNext()) {
+				Node n = nodes.next();
+				Object name = n.getProperty(property, null);
+				if (name instanceof String) {
+					add((String) name, n.getId());
+				}
+			}
+			tx.success();
+		} catch (RuntimeException e) {
+			System.err.println("can't build node name dictionary: " + label.name() + '.' + property);
+			e.printStackTrace();
+			return;
+		}
+		synchronized (this) {
+			for (Object[] change : changedWhileBuilding) {
+				apply(change);
+			}
+			changedWhileBuilding = null;
+			ready = true;
+		}
+	}
+
+	private synchronized void update(List<Object[]> changes) {
+		if (changedWhileBuilding != null) {
+			changedWhileBuilding.addAll(changes);
+			return;
+		}
+		for (Object[] change : changes) {
+			apply(change);
+		}
+	}
+
+	/**
+	 * applies a change (name, node id, added)
+	 */
+	private void apply(Object[] change) {
+		if (change[2] == Boolean.TRUE) {
+			add((String) change[0], (Long) change[1]);
+		} else {
+			remove((String) change[0], (Long) change[1]);
+		}
+	}
+
+	private void add(String name, long id) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(key);
+		lock.writeLock().lock();
+		try {
+			int offset = find(key, hash);
+			if (offset >= 0) {
+				long existing = records.getLong(offset + 8);
+				if (existing == MISSING) {
+					records.putLong(offset + 8, id);
+					names++;
+					removed--;
+				} else if (existing == UNKNOWN) {
+					shared.get(name).add(id);
+				} else if (existing != id) {
+					PrimitiveLongSet ids = Primitive.longSet();
+					ids.add(existing);
+					ids.add(id);
+					shared.put(name, ids);
+					records.putLong(offset + 8, UNKNOWN);
+				}
+				return;
+			}
+			offset = append(key, hash, id);
+			if ((size + 1) * 2 > table.capacity()) {
+				rehash(table.capacity() * 2);
+			}
+			insert(offset, hash);
+			size++;
+			names++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * the record of a removed name is kept as missing, such that readding reuses it, until they are reclaimed
+	 */
+	private void remove(String name, long id) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int offset = find(key, hash(key));
+			if (offset < 0) {
+				return;
+			}
+			long existing = records.getLong(offset + 8);
+			if (existing == id) {
+				records.putLong(offset + 8, MISSING);
+				names--;
+				removed++;
+				if (removed > MIN_RECLAIM && removed * 2 > size) {
+					reclaim();
+				}
+			} else if (existing == UNKNOWN) {
+				PrimitiveLongSet ids = shared.get(name);
+				ids.remove(id);
+				if (ids.size() == 1) { // unique again
+					records.putLong(offset + 8, ids.iterator().next());
+					shared.remove(name);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * rewrites the records and the table without the removed names
+	 */
+	private void reclaim() {
+		int live = size - removed;
+		int capacity = 1024;
+		while ((live + 1) * 2 > capacity) {
+			capacity *= 2;
+		}
+		ByteBuffer old = records;
+		LongBuffer oldTable = table;
+		records = ByteBuffer.allocateDirect(Math.max(1 << 16, old.position()));
+		table = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+		for (int i = 0; i < oldTable.capacity(); ++i) {
+			long entry = oldTable.get(i);
+			if (entry == 0) {
+				continue;
+			}
+			int offset = (int) (entry - 1);
+			if (old.getLong(offset + 8) == MISSING) {
+				continue;
+			}
+			ByteBuffer record = old.duplicate();
+			((Buffer) record).limit(offset + HEADER + old.getInt(offset + 4));
+			((Buffer) record).position(offset);
+			int target = records.position();
+			records.put(record);
+			insert(target, old.getInt(offset));
+		}
+		size = live;
+		removed = 0;
+	}
+
+	/**
+	 * @return the number of records, including the ones of removed names
+	 */
+	int records() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int find(byte[] key, int hash) {
+		int mask = table.capacity() - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			long entry = table.get(slot);
+			if (entry == 0) {
+				return -1;
+			}
+			int offset = (int) (entry - 1);
+			if (records.getInt(offset) == hash && equalsKey(offset, key)) {
+				return offset;
+			}
+		}
+	}
+
+	private boolean equalsKey(int offset, byte[] key) {
+		if (records.getInt(offset + 4) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; ++i) {
+			if (records.get(offset + HEADER + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int append(byte[] key, int hash, long id) {
+		int length = HEADER + key.length;
+		if (records.remaining() < length) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(records.capacity() * 2, records.position() + length));
+			((Buffer) records).flip(); // the java 8 signature, see PathCacheStore#read
+			bigger.put(records);
+			records = bigger;
+		}
+		int offset = records.position();
+		records.putInt(hash).putInt(key.length).putLong(id).put(key);
+		return offset;
+	}
+
+	private void insert(int offset, int hash) {
+		int mask = table.capacity() - 1;
+		int slot = hash & mask;
+		while (table.get(slot) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table.put(slot, offset + 1L);
+	}
+
+	private void rehash(int capacity) {
+		LongBuffer old = table;
+		table = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+		for (int i = 0; i < old.capacity(); ++i) {
+			long entry = old.get(i);
+			if (entry != 0) {
+				int offset = (int) (entry - 1);
+				insert(offset, records.getInt(offset));
+			}
+		}
+	}
+
+	private static int hash(byte[] key) {
+		int h = 0;
+		for (byte b : key) {
+			h = 31 * h + b;
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public String toString() {
+		return "NodeNameDictionary [" + label.name() + '.' + property + ", names=" + names + ", ready=" + ready + "]";
+	}
+
+	private final class UpdateHandler extends TransactionEventHandler.Adapter<List<Object[]>> {
+		/**
+		 * collects the changed names while the node state is still readable
+		 */
+		@Override
+		public List<Object[]> beforeCommit(TransactionData data) throws Exception {
+			List<Object[]> changes = new ArrayList<>();
+			List<Object[]> added = new ArrayList<>();
+			// the committed names of the nodes whose name changed in this transaction
+			Map<Long, Object> committed = new HashMap<>();
+			for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+				if (entry.key().equals(property)) {
+					committed.put(entry.entity().getId(), entry.previouslyCommitedValue());
+				}
+			}
+			for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+				if (entry.key().equals(property)) {
+					committed.put(entry.entity().getId(), entry.previouslyCommitedValue());
+					if (entry.entity().hasLabel(label)) {
+						added.add(new Object[] { entry.value(), entry.entity().getId(), true });
+					}
+				}
+			}
+			// removing a name that the node didn't have is a no-op, e.g. if the label was just added
+			for (Map.Entry<Long, Object> entry : committed.entrySet()) {
+				changes.add(new Object[] { entry.getValue(), entry.getKey(), false });
+			}
+			for (LabelEntry entry : data.removedLabels()) {
+				long id = entry.node().getId();
+				if (entry.label().name().equals(label.name()) && !data.isDeleted(entry.node())
+						&& !committed.containsKey(id)) {
+					changes.add(new Object[] { entry.node().getProperty(property, null), id, false });
+				}
+			}
+			// after the removals, the name may be the same as before
+			changes.addAll(added);
+			for (LabelEntry entry : data.assignedLabels()) {
+				if (entry.label().name().equals(label.name())) {
+					changes.add(new Object[] { entry.node().getProperty(property, null), entry.node().getId(), true });
+				}
+			}
+			// just string names are indexed
+			for (Iterator<Object[]> it = changes.iterator(); it.hasNext();) {
+				if (!(it.next()[0] instanceof String)) {
+					it.remove();
+				}
+			}
+			return changes.isEmpty() ? null : changes;
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, List<Object[]> state) {
+			if (state != null) {
+				update(state);
+			}
+		}
+	}
+}
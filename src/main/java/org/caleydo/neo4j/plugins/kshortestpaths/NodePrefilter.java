@@ -0,0 +1,106 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IConstraint;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IPathConstraint;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.PathConstraints;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.helpers.collection.Pair;
+
+/**
+ * planner step: if the per node constraint of a query is selective enough, the set of allowed nodes is materialized
+ * up front (using a schema index seek or a label scan), such that the expander just needs a membership test
+ *
+ * @author sam
+ *
+ */
+public class NodePrefilter {
+	/**
+	 * max fraction of all nodes the allowed set may cover
+	 */
+	private static final double MAX_SELECTIVITY = 0.05;
+	/**
+	 * max absolute number of candidate nodes to scan
+	 */
+	private static final long MAX_CANDIDATES = 1 << 22;
+
+	/**
+	 * @return the allowed nodes or null if the constraints aren't selective enough
+	 */
+	public static NodeIdBitmap plan(IPathConstraint constraints, FakeGraphDatabase db, Trace trace) {
+		final IConstraint perNode = PathConstraints.getPerNodeConstraint(constraints);
+		GraphTokens tokens = db.tokens();
+		if (perNode == null || !tokens.isAvailable()) {
+			return null;
+		}
+		List<String> labels = PathConstraints.findAndLabels(perNode);
+		if (labels.isEmpty()) { // no cheap candidate source
+			return null;
+		}
+
+		// most selective label
+		int bestLabel = -1;
+		String bestLabelName = null;
+		long estimate = Long.MAX_VALUE;
+		for (String label : labels) {
+			int id = tokens.labelId(label);
+			long count = id < 0 ? 0 : tokens.countNodes(id);
+			if (count < estimate) {
+				estimate = count;
+				bestLabel = id;
+				bestLabelName = label;
+			}
+		}
+		// more selective index seek
+		Pair<String, Object> bestSeek = null;
+		for (String label : labels) {
+			for (Pair<String, Object> eq : PathConstraints.findAndPropertyEqualities(perNode)) {
+				long count = tokens.estimateIndexSeek(tokens.labelId(label), tokens.propertyKeyId(eq.first()));
+				if (count >= 0 && count < estimate) {
+					estimate = count;
+					bestSeek = eq;
+					bestLabelName = label;
+				}
+			}
+		}
+
+		long total = tokens.countNodes();
+		if (estimate > MAX_CANDIDATES || estimate > total * MAX_SELECTIVITY) {
+			if (trace.isEnabled()) {
+				trace.log("prefilter: not selective enough " + estimate + "/" + total);
+			}
+			return null;
+		}
+
+		final NodeIdBitmap allowed = new NodeIdBitmap();
+		if (bestSeek != null) {
+			try (ResourceIterator<Node> it = db.findNodes(Label.label(bestLabelName), bestSeek.first(),
+					bestSeek.other())) {
+				while (it.hasNext()) {
+					Node node = it.next();
+					if (perNode.accept(node, null)) {
+						allowed.add(node.getId());
+					}
+				}
+			}
+		} else if (bestLabel >= 0) {
+			final FakeGraphDatabase fdb = db;
+			tokens.visitNodesWithLabel(bestLabel, new LongConsumer() {
+				@Override
+				public void accept(long id) {
+					if (perNode.accept(fdb.getNodeById(id), null)) {
+						allowed.add(id);
+					}
+				}
+			});
+		}
+		if (trace.isEnabled()) {
+			trace.log("prefilter: " + allowed + " estimated " + estimate + "/" + total);
+		}
+		return allowed;
+	}
+}
@@ -0,0 +1,554 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.caleydo.neo4j.plugins.kshortestpaths.PathResultCache.Dependencies;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.kernel.impl.store.StoreId;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * persistent tier of the {@link PathResultCache}: an append only segment file of encoded results, read via a memory
+ * mapping, and a compact index file of (key fingerprint, offset, dependencies) entries. The index is written on
+ * shutdown, stamped with the store id and the last committed transaction id. It is only trusted if both still match
+ * when the store is loaded (lazily on first access), i.e. if no commit happened that the invalidation didn't see.
+ * Invalidated records stay in the segment until a background compaction rewrites it. If the live records exceed the
+ * byte cap, the oldest ones are evicted.
+ *
+ * configurable via the system properties kshortestpaths.cache.persistent (default true), kshortestpaths.cache.dir
+ * (default the kshortestpaths-cache directory next to the store) and kshortestpaths.cache.mb (default 256, at most
+ * 512)
+ *
+ * @author sam
+ *
+ */
+public class PathCacheStore {
+	private static final boolean ENABLED = !"false".equals(System.getProperty("kshortestpaths.cache.persistent"));
+	private static final String SEGMENT = "paths.seg";
+	private static final String INDEX = "paths.idx";
+	private static final int RECORD_MAGIC = 0x4B535031;
+	private static final long INDEX_MAGIC = 0x4B5350494458L;
+	/**
+	 * min number of dead bytes before compacting
+	 */
+	private static final long MIN_COMPACTION = 1 << 20;
+	/**
+	 * the segment is mapped as a whole, so it can't grow beyond the max mapping size
+	 */
+	private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+	private static final long MAX_BYTES = Math.min(Long.getLong("kshortestpaths.cache.mb", 256) << 20,
+			MAX_SEGMENT / 4);
+
+	private final File dir;
+	private final long maxBytes;
+	private final long[] storeStamp;
+	private final LongSupplier lastCommittedTx;
+	/**
+	 * last committed transaction when the invalidation started to watch
+	 */
+	private final long openedAt;
+	/**
+	 * last committed transaction seen by the invalidation, the store can't be read anymore on shutdown
+	 */
+	private final AtomicLong watermark;
+
+	private boolean loaded = false;
+	private FileChannel segment;
+	private MappedByteBuffer mapped;
+	private long segmentLength = 0;
+	private long deadBytes = 0;
+	private boolean compacting = false;
+	private final PrimitiveLongObjectMap<Slot> index = Primitive.longObjectMap();
+
+	PathCacheStore(File dir, long[] storeStamp, LongSupplier lastCommittedTx) {
+		this(dir, MAX_BYTES, storeStamp, lastCommittedTx);
+	}
+
+	PathCacheStore(File dir, long maxBytes, long[] storeStamp, LongSupplier lastCommittedTx) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.storeStamp = storeStamp;
+		this.lastCommittedTx = lastCommittedTx;
+		this.openedAt = lastCommittedTx.getAsLong();
+		this.watermark = new AtomicLong(openedAt);
+	}
+
+	/**
+	 * @return the store of the given database, without loading it yet, or null if not possible
+	 */
+	static PathCacheStore open(GraphDatabaseService db) {
+		if (!ENABLED || !(db instanceof GraphDatabaseAPI)) {
+			return null;
+		}
+		GraphDatabaseAPI api = (GraphDatabaseAPI) db;
+		try {
+			final TransactionIdStore txs = api.getDependencyResolver().resolveDependency(TransactionIdStore.class);
+			StoreId id = api.storeId();
+			String d = System.getProperty("kshortestpaths.cache.dir");
+			File dir = d != null ? new File(d) : new File(api.getStoreDir(), "kshortestpaths-cache");
+			final PathCacheStore store = new PathCacheStore(dir,
+					new long[] { id.getRandomId(), id.getCreationTime(), id.getStoreVersion() },
+					txs::getLastCommittedTransactionId);
+			db.registerKernelEventHandler(new KernelEventHandler() {
+				@Override
+				public void beforeShutdown() {
+					store.close();
+				}
+
+				@Override
+				public void kernelPanic(ErrorState error) {
+				}
+
+				@Override
+				public Object getResource() {
+					return store;
+				}
+
+				@Override
+				public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+					return ExecutionOrder.DOESNT_MATTER;
+				}
+			});
+			return store;
+		} catch (RuntimeException e) {
+			System.err.println("can't open the persistent path cache: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the key
+	 */
+	static long fingerprint(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); ++i) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * @return the stored entry of the given key or null
+	 */
+	synchronized PathResultCache.Entry get(String key) {
+		if (!ensureLoaded()) {
+			return null;
+		}
+		Slot slot = index.get(fingerprint(key));
+		if (slot == null) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteBufferInputStream(read(slot)));
+			if (in.readInt() != RECORD_MAGIC || !key.equals(in.readUTF())) {
+				return null;
+			}
+			Dependencies deps = Dependencies.read(in);
+			List<String> types = new ArrayList<>();
+			for (int n = in.readInt(); n > 0; --n) {
+				types.add(in.readUTF());
+			}
+			long[] data = new long[in.readInt()];
+			for (int i = 0; i < data.length; ++i) {
+				data[i] = in.readLong();
+			}
+			CompactPaths paths = new CompactPaths(data, types);
+			return new PathResultCache.Entry(paths, deps, paths.bytes() + key.length() * 2);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("can't read the persistent path cache entry: " + e);
+			return null;
+		}
+	}
+
+	synchronized void put(String key, CompactPaths paths, Dependencies dependencies) {
+		if (!ensureLoaded()) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(RECORD_MAGIC);
+			out.writeUTF(key);
+			dependencies.write(out);
+			List<String> types = paths.getTypes();
+			out.writeInt(types.size());
+			for (String type : types) {
+				out.writeUTF(type);
+			}
+			long[] data = paths.getData();
+			out.writeInt(data.length);
+			for (long v : data) {
+				out.writeLong(v);
+			}
+			out.flush();
+			if (segmentLength + bytes.size() > MAX_SEGMENT) { // until the pending compaction is done
+				return;
+			}
+			ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+			long offset = segmentLength;
+			while (record.hasRemaining()) {
+				segment.write(record, offset + record.position());
+			}
+			segmentLength += bytes.size();
+			Slot old = index.put(fingerprint(key), new Slot(offset, bytes.size(), dependencies));
+			if (old != null) {
+				deadBytes += old.length;
+			}
+			if (segmentLength - deadBytes > maxBytes) {
+				evict(maxBytes * 3 / 4);
+			}
+			maybeCompact();
+		} catch (IOException e) {
+			System.err.println("can't write the persistent path cache entry: " + e);
+		}
+	}
+
+	synchronized void invalidate(Dependencies changed) {
+		if (!ensureLoaded()) {
+			return;
+		}
+		List<Long> dropped = new ArrayList<>();
+		for (PrimitiveLongIterator it = index.iterator(); it.hasNext();) {
+			long fp = it.next();
+			if (index.get(fp).dependencies.intersects(changed)) {
+				dropped.add(fp);
+			}
+		}
+		for (long fp : dropped) {
+			deadBytes += index.remove(fp).length;
+		}
+		maybeCompact();
+	}
+
+	/**
+	 * evicts the oldest records until the live ones fit into the given number of bytes
+	 */
+	private void evict(long target) {
+		for (long fp : byOffset()) {
+			if (segmentLength - deadBytes <= target) {
+				break;
+			}
+			deadBytes += index.remove(fp).length;
+		}
+	}
+
+	/**
+	 * @return the fingerprints of the live records from the oldest to the newest
+	 */
+	private List<Long> byOffset() {
+		List<Long> fps = new ArrayList<>(index.size());
+		for (PrimitiveLongIterator it = index.iterator(); it.hasNext();) {
+			fps.add(it.next());
+		}
+		fps.sort((a, b) -> Long.compare(index.get(a).offset, index.get(b).offset));
+		return fps;
+	}
+
+	private void maybeCompact() {
+		if (deadBytes > MIN_COMPACTION && deadBytes * 2 > segmentLength && !compacting) {
+			compacting = true;
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					compact();
+				}
+			}, "PathCacheStore compaction");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.start();
+		}
+	}
+
+	/**
+	 * to be called after every commit, once its changes are invalidated
+	 */
+	void committed() {
+		final long tx = lastCommittedTx.getAsLong();
+		watermark.accumulateAndGet(tx, Math::max);
+	}
+
+	/**
+	 * writes the index stamped with the last seen transaction
+	 */
+	synchronized void close() {
+		if (!loaded || segment == null) {
+			return;
+		}
+		try {
+			segment.force(true);
+			writeIndex(watermark.get());
+			segment.close();
+		} catch (IOException e) {
+			System.err.println("can't write the persistent path cache index: " + e);
+		}
+		segment = null;
+		mapped = null;
+		loaded = false;
+	}
+
+	synchronized int size() {
+		return ensureLoaded() ? index.size() : 0;
+	}
+
+	/**
+	 * @return whether the store is usable
+	 */
+	private boolean ensureLoaded() {
+		if (loaded) {
+			return segment != null;
+		}
+		loaded = true;
+		try {
+			dir.mkdirs();
+			segment = FileChannel.open(new File(dir, SEGMENT).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (!readIndex()) {
+				index.clear();
+				segmentLength = 0;
+				deadBytes = 0;
+			}
+			segment.truncate(segmentLength); // drop unindexed records
+		} catch (IOException e) {
+			System.err.println("can't load the persistent path cache: " + e);
+			segment = null;
+		}
+		return segment != null;
+	}
+
+	private boolean readIndex() throws IOException {
+		File f = new File(dir, INDEX);
+		if (!f.exists()) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			if (in.readLong() != INDEX_MAGIC) {
+				return false;
+			}
+			for (long s : storeStamp) {
+				if (in.readLong() != s) {
+					return false;
+				}
+			}
+			if (in.readLong() != openedAt) { // commits happened we didn't see
+				return false;
+			}
+			segmentLength = in.readLong();
+			if (segment.size() < segmentLength) {
+				return false;
+			}
+			long live = 0;
+			for (int n = in.readInt(); n > 0; --n) {
+				long fp = in.readLong();
+				Slot slot = new Slot(in.readLong(), in.readInt(), Dependencies.read(in));
+				index.put(fp, slot);
+				live += slot.length;
+			}
+			deadBytes = segmentLength - live;
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			f.delete(); // invalid as soon as something changes, rewritten on close
+		}
+	}
+
+	private void writeIndex(long watermark) throws IOException {
+		File tmp = new File(dir, INDEX + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeLong(INDEX_MAGIC);
+			for (long s : storeStamp) {
+				out.writeLong(s);
+			}
+			out.writeLong(watermark);
+			out.writeLong(segmentLength);
+			out.writeInt(index.size());
+			for (PrimitiveLongIterator it = index.iterator(); it.hasNext();) {
+				long fp = it.next();
+				Slot slot = index.get(fp);
+				out.writeLong(fp);
+				out.writeLong(slot.offset);
+				out.writeInt(slot.length);
+				slot.dependencies.write(out);
+			}
+		}
+		Files.move(tmp.toPath(), new File(dir, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private ByteBuffer read(Slot slot) throws IOException {
+		if (mapped == null || mapped.capacity() < slot.offset + slot.length) {
+			mapped = segment.map(FileChannel.MapMode.READ_ONLY, 0, segmentLength);
+		}
+		// via the java 8 signatures, newer jdks add covariant overrides that don't exist at runtime. The int casts are
+		// safe as the segment never exceeds MAX_SEGMENT
+		ByteBuffer b = ((ByteBuffer) mapped).duplicate();
+		((Buffer) b).position((int) slot.offset);
+		((Buffer) b).limit((int) (slot.offset + slot.length));
+		return b.slice();
+	}
+
+	/**
+	 * rewrites the segment with just the live records, in their order. The records are copied without holding the
+	 * lock, just the ones written meanwhile are copied when the new segment is swapped in.
+	 */
+	void compact() {
+		FileChannel source;
+		long end;
+		List<Long> fps;
+		PrimitiveLongObjectMap<Slot> copied = Primitive.longObjectMap();
+		synchronized (this) {
+			if (segment == null) {
+				compacting = false;
+				return;
+			}
+			source = segment;
+			end = segmentLength;
+			fps = byOffset();
+			for (long fp : fps) {
+				copied.put(fp, index.get(fp));
+			}
+		}
+		File tmp = new File(dir, SEGMENT + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long length = 0;
+			PrimitiveLongObjectMap<Slot> moved = Primitive.longObjectMap();
+			for (long fp : fps) {
+				Slot slot = copied.get(fp);
+				copy(source, slot, out);
+				moved.put(fp, new Slot(length, slot.length, slot.dependencies));
+				length += slot.length;
+			}
+			synchronized (this) {
+				if (segment != source) { // closed meanwhile
+					return;
+				}
+				List<Long> live = byOffset();
+				PrimitiveLongObjectMap<Slot> next = Primitive.longObjectMap();
+				for (long fp : live) {
+					Slot slot = index.get(fp);
+					if (slot.offset >= end) { // written meanwhile
+						copy(source, slot, out);
+						next.put(fp, new Slot(length, slot.length, slot.dependencies));
+						length += slot.length;
+					} else {
+						next.put(fp, moved.get(fp));
+					}
+				}
+				out.force(true);
+				swap(tmp, next, length);
+			}
+		} catch (IOException e) {
+			System.err.println("can't compact the persistent path cache: " + e);
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+			tmp.delete();
+		}
+	}
+
+	private static void copy(FileChannel from, Slot slot, FileChannel to) throws IOException {
+		long done = 0;
+		while (done < slot.length) {
+			long n = from.transferTo(slot.offset + done, slot.length - done, to);
+			if (n <= 0) {
+				throw new IOException("truncated segment");
+			}
+			done += n;
+		}
+	}
+
+	/**
+	 * replaces the segment with the compacted one
+	 */
+	private void swap(File compacted, PrimitiveLongObjectMap<Slot> next, long length) {
+		try {
+			segment.close();
+			mapped = null;
+			Files.move(compacted.toPath(), new File(dir, SEGMENT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			segment = FileChannel.open(new File(dir, SEGMENT).toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			index.clear();
+			for (PrimitiveLongIterator it = next.iterator(); it.hasNext();) {
+				long fp = it.next();
+				index.put(fp, next.get(fp));
+			}
+			segmentLength = length;
+			deadBytes = 0;
+		} catch (IOException e) {
+			System.err.println("can't compact the persistent path cache, dropping it: " + e);
+			index.clear();
+			segment = null;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PathCacheStore [" + dir + ", entries=" + index.size() + ", bytes=" + segmentLength + ", dead="
+				+ deadBytes + "]";
+	}
+
+	private static final class Slot {
+		final long offset;
+		final int length;
+		final Dependencies dependencies;
+
+		Slot(long offset, int length, Dependencies dependencies) {
+			this.offset = offset;
+			this.length = length;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer b;
+
+		ByteBufferInputStream(ByteBuffer b) {
+			this.b = b;
+		}
+
+		@Override
+		public int read() {
+			return b.hasRemaining() ? b.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) {
+			if (!b.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, b.remaining());
+			b.get(bytes, off, len);
+			return len;
+		}
+	}
+}
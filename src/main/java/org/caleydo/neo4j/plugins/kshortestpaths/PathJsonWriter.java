@@ -0,0 +1,69 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.io.IOException;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * writes paths, nodes and relationships directly to a {@link JsonWriter} in the format of
+ * {@link KShortestPaths#getPathAsMap(Path)}, without building intermediate maps and lists
+ *
+ * @author sam
+ *
+ */
+public class PathJsonWriter {
+	/**
+	 * <code>{"weight": length, "nodes": [{"id": 1}, ...], "edges": [{"id": 2, "type": "to", "sourceNodeId": 1, "targetNodeId": 3}, ...]}</code>
+	 */
+	public static void write(JsonWriter writer, Path path) throws IOException {
+		writer.beginObject();
+		writer.name("weight").value(path.length());
+		writer.name("nodes").beginArray();
+		for (Node node : path.nodes()) {
+			write(writer, node);
+		}
+		writer.endArray();
+		writer.name("edges").beginArray();
+		for (Relationship rel : path.relationships()) {
+			write(writer, rel);
+		}
+		writer.endArray();
+		writer.endObject();
+	}
+
+	public static void write(JsonWriter writer, Node node) throws IOException {
+		writeNode(writer, node.getId());
+	}
+
+	public static void write(JsonWriter writer, Relationship rel) throws IOException {
+		writeEdge(writer, rel.getId(), rel.getType().name(), rel.getStartNode().getId(), rel.getEndNode().getId());
+	}
+
+	/**
+	 * a node with the relationship leading to it as <code>_edge</code>
+	 */
+	public static void writeNeighbor(JsonWriter writer, Node node, Relationship rel) throws IOException {
+		writer.beginObject();
+		writer.name("id").value(node.getId());
+		writer.name("_edge");
+		write(writer, rel);
+		writer.endObject();
+	}
+
+	public static void writeNode(JsonWriter writer, long id) throws IOException {
+		writer.beginObject().name("id").value(id).endObject();
+	}
+
+	public static void writeEdge(JsonWriter writer, long id, String type, long source, long target) throws IOException {
+		writer.beginObject();
+		writer.name("id").value(id);
+		writer.name("type").value(type);
+		writer.name("sourceNodeId").value(source);
+		writer.name("targetNodeId").value(target);
+		writer.endObject();
+	}
+}
@@ -0,0 +1,465 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * cross request cache of query results in their {@link CompactPaths} form, bounded by memory and evicted in least
+ * recently used order. Each entry knows the relationship types, labels and properties its query depends on, a commit
+ * just drops the entries depending on something it changed.
+ *
+ * the memory cap in MB is configurable via the system property kshortestpaths.resultCache.mb. Results are also
+ * written to a {@link PathCacheStore}, which serves misses of the memory tier, e.g. after a restart.
+ *
+ * @author sam
+ *
+ */
+public class PathResultCache {
+	private static final long MAX_BYTES = Long.getLong("kshortestpaths.resultCache.mb", 32) << 20;
+
+	private static final Map<GraphDatabaseService, PathResultCache> caches = new WeakHashMap<>();
+
+	private final long maxBytes;
+	/**
+	 * persistent tier or null
+	 */
+	private final PathCacheStore store;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+	/**
+	 * incremented by every invalidating commit, results computed across one are not cached
+	 */
+	private long version = 0;
+
+	public PathResultCache(long maxBytes, PathCacheStore store) {
+		this.maxBytes = maxBytes;
+		this.store = store;
+	}
+
+	/**
+	 * @return the shared cache of the given database, the first call registers the invalidation handler
+	 */
+	public static PathResultCache of(GraphDatabaseService db) {
+		if (db instanceof FakeGraphDatabase) {
+			db = ((FakeGraphDatabase) db).getDelegate();
+		}
+		synchronized (caches) {
+			PathResultCache cache = caches.get(db);
+			if (cache == null) {
+				cache = new PathResultCache(MAX_BYTES, PathCacheStore.open(db));
+				db.registerTransactionEventHandler(cache.new InvalidationHandler());
+				caches.put(db, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * @return the cache key of a query given by its parameters
+	 */
+	public static String key(Object... parameters) {
+		StringBuilder b = new StringBuilder();
+		for (Object p : parameters) {
+			b.append(Objects.toString(p)).append('\u0000');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return the given JSON description with sorted keys, such that equal descriptions get the same key
+	 */
+	public static String normalize(String json) {
+		if (json == null || json.isEmpty()) {
+			return json;
+		}
+		try {
+			return new Gson().toJson(sorted(new Gson().fromJson(json, Object.class)));
+		} catch (JsonSyntaxException e) {
+			return json;
+		}
+	}
+
+	private static Object sorted(Object desc) {
+		if (desc instanceof Map<?, ?>) {
+			Map<String, Object> r = new TreeMap<>();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) desc).entrySet()) {
+				r.put(e.getKey().toString(), sorted(e.getValue()));
+			}
+			return r;
+		}
+		if (desc instanceof List<?>) {
+			List<Object> r = new ArrayList<>();
+			for (Object child : (List<?>) desc) {
+				r.add(sorted(child));
+			}
+			return r;
+		}
+		return desc;
+	}
+
+	public synchronized CompactPaths get(String key) {
+		Entry e = entries.get(key);
+		if (e == null && store != null) {
+			e = store.get(key);
+			if (e != null) {
+				add(key, e);
+			}
+		}
+		return e == null ? null : e.paths;
+	}
+
+	/**
+	 * @return the version to pass to {@link #put} for a result computed from now on
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * caches the given result unless a commit invalidated something since the given version
+	 */
+	public synchronized void put(String key, CompactPaths paths, Dependencies dependencies, long version) {
+		long size = paths.bytes() + key.length() * 2;
+		if (version != this.version || size > maxBytes / 8) {
+			return;
+		}
+		add(key, new Entry(paths, dependencies, size));
+		if (store != null) {
+			store.put(key, paths, dependencies);
+		}
+	}
+
+	private void add(String key, Entry e) {
+		Entry old = entries.put(key, e);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+		bytes += e.bytes;
+		for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext();) {
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	private synchronized void invalidate(Dependencies changed) {
+		version++;
+		if (store != null) {
+			store.invalidate(changed);
+		}
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry e = it.next();
+			if (e.dependencies.intersects(changed)) {
+				bytes -= e.bytes;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PathResultCache [entries=" + entries.size() + ", bytes=" + bytes + "]";
+	}
+
+	static final class Entry {
+		final CompactPaths paths;
+		final Dependencies dependencies;
+		final long bytes;
+
+		Entry(CompactPaths paths, Dependencies dependencies, long bytes) {
+			this.paths = paths;
+			this.dependencies = dependencies;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * the relationship types, labels and node / relationship properties a query result depends on or a commit
+	 * changed, null for all of a kind
+	 */
+	public static final class Dependencies {
+		Set<String> types = new HashSet<>();
+		Set<String> labels = new HashSet<>();
+		Set<String> nodeProperties = new HashSet<>();
+		Set<String> relationshipProperties = new HashSet<>();
+
+		/**
+		 * derives the dependencies of a query from its constraints description and cost function
+		 */
+		@SuppressWarnings("unchecked")
+		public static Dependencies of(String constraints, String costFunction) {
+			Dependencies d = new Dependencies();
+			Map<String, Object> c = null;
+			if (constraints != null && !constraints.isEmpty()) {
+				try {
+					c = new Gson().fromJson(constraints, Map.class);
+				} catch (JsonSyntaxException e) {
+					// the query fails to parse them, too
+				}
+			}
+			Object dir = c == null ? null : c.get("dir");
+			if (dir instanceof Map<?, ?> && !((Map<?, ?>) dir).isEmpty()) {
+				d.types.addAll(((Map<String, Object>) dir).keySet());
+			} else {
+				d.types = null;
+			}
+			Object inline = c == null ? null : c.get("inline");
+			if (inline instanceof Map<?, ?>) {
+				Map<String, Object> i = (Map<String, Object>) inline;
+				if (d.types != null) {
+					d.types.add(Objects.toString(i.get("inline")));
+				}
+				d.labels = null; // aggregated by label
+				d.nodeProperties.add(Objects.toString(i.get("toaggregate")));
+			}
+			if (c != null) {
+				d.collect(c.get("c"));
+			}
+			if (costFunction != null) {
+				d.relationshipProperties = null; // scripts may read any
+			}
+			return d;
+		}
+
+		/**
+		 * adds the dependency on a node lookup by label and property
+		 */
+		public void addLookup(String label, String property) {
+			if (labels != null) {
+				labels.add(label);
+			}
+			if (nodeProperties != null) {
+				nodeProperties.add(property);
+			}
+		}
+
+		/**
+		 * adds the dependency on a relationship property, e.g. weighted by a cost profile
+		 */
+		public void addRelationshipProperty(String property) {
+			if (relationshipProperties != null) {
+				relationshipProperties.add(property);
+			}
+		}
+
+		/**
+		 * collects the labels and properties referenced by the given element constraints
+		 */
+		@SuppressWarnings("unchecked")
+		private void collect(Object desc) {
+			if (desc instanceof Iterable<?>) {
+				for (Object child : (Iterable<?>) desc) {
+					collect(child);
+				}
+				return;
+			}
+			if (!(desc instanceof Map<?, ?>)) {
+				return;
+			}
+			Map<String, Object> m = (Map<String, Object>) desc;
+			if (m.containsKey("context") || m.containsKey("prop")) {
+				String context = Objects.toString(m.get("context")).toLowerCase();
+				boolean node = context.startsWith("n") || context.isEmpty();
+				Object prop = m.get("prop");
+				if (prop != null) {
+					Set<String> s = node ? nodeProperties : relationshipProperties;
+					if (s != null) {
+						s.add(prop.toString());
+					}
+				} else if (node && labels != null) {
+					if (isEquality(m)) {
+						labels = null; // an exact label set, any other label of a node changes the result
+					} else {
+						collectValues(m, labels);
+					}
+				}
+				return;
+			}
+			for (Object child : m.values()) {
+				collect(child);
+			}
+		}
+
+		/**
+		 * @return whether the given value constraint description tests for equality, e.g. $eq or $neq
+		 */
+		private static boolean isEquality(Object desc) {
+			if (desc instanceof Map<?, ?>) {
+				for (Map.Entry<?, ?> e : ((Map<?, ?>) desc).entrySet()) {
+					String key = e.getKey().toString().toLowerCase();
+					if (key.equals("$eq") || key.equals("$equal") || key.equals("$neq") || key.equals("$not-equal")) {
+						return true;
+					}
+					if (key.startsWith("$") && isEquality(e.getValue())) {
+						return true;
+					}
+				}
+			} else if (desc instanceof Iterable<?>) {
+				for (Object child : (Iterable<?>) desc) {
+					if (isEquality(child)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private static void collectValues(Object desc, Set<String> r) {
+			if (desc instanceof String) {
+				r.add((String) desc);
+			} else if (desc instanceof Map<?, ?>) {
+				for (Map.Entry<?, ?> e : ((Map<?, ?>) desc).entrySet()) {
+					if (e.getKey().toString().startsWith("$")) {
+						collectValues(e.getValue(), r);
+					}
+				}
+			} else if (desc instanceof Iterable<?>) {
+				for (Object child : (Iterable<?>) desc) {
+					collectValues(child, r);
+				}
+			}
+		}
+
+		void write(DataOutput out) throws IOException {
+			write(out, types);
+			write(out, labels);
+			write(out, nodeProperties);
+			write(out, relationshipProperties);
+		}
+
+		private static void write(DataOutput out, Set<String> s) throws IOException {
+			out.writeInt(s == null ? -1 : s.size());
+			if (s != null) {
+				for (String v : s) {
+					out.writeUTF(v);
+				}
+			}
+		}
+
+		static Dependencies read(DataInput in) throws IOException {
+			Dependencies d = new Dependencies();
+			d.types = read(in, d.types);
+			d.labels = read(in, d.labels);
+			d.nodeProperties = read(in, d.nodeProperties);
+			d.relationshipProperties = read(in, d.relationshipProperties);
+			return d;
+		}
+
+		private static Set<String> read(DataInput in, Set<String> s) throws IOException {
+			int n = in.readInt();
+			if (n < 0) {
+				return null;
+			}
+			for (int i = 0; i < n; ++i) {
+				s.add(in.readUTF());
+			}
+			return s;
+		}
+
+		boolean intersects(Dependencies changed) {
+			return intersects(types, changed.types) || intersects(labels, changed.labels)
+					|| intersects(nodeProperties, changed.nodeProperties)
+					|| intersects(relationshipProperties, changed.relationshipProperties);
+		}
+
+		private static boolean intersects(Set<String> a, Set<String> b) {
+			if (a == null) {
+				return b == null || !b.isEmpty();
+			}
+			if (b == null) {
+				return !a.isEmpty();
+			}
+			for (String s : b) {
+				if (a.contains(s)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean isEmpty() {
+			return types != null && types.isEmpty() && labels != null && labels.isEmpty() && nodeProperties != null
+					&& nodeProperties.isEmpty() && relationshipProperties != null && relationshipProperties.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "Dependencies [types=" + types + ", labels=" + labels + ", nodeProperties=" + nodeProperties
+					+ ", relationshipProperties=" + relationshipProperties + "]";
+		}
+	}
+
+	private final class InvalidationHandler extends TransactionEventHandler.Adapter<Dependencies> {
+		/**
+		 * collects what changed while the deleted relationships are still readable
+		 */
+		@Override
+		public Dependencies beforeCommit(TransactionData data) throws Exception {
+			Dependencies changed = new Dependencies();
+			for (Relationship r : data.createdRelationships()) {
+				changed.types.add(r.getType().name());
+			}
+			try {
+				for (Relationship r : data.deletedRelationships()) {
+					changed.types.add(r.getType().name());
+				}
+			} catch (RuntimeException e) {
+				changed.types = null;
+			}
+			for (LabelEntry entry : data.assignedLabels()) {
+				changed.labels.add(entry.label().name());
+			}
+			for (LabelEntry entry : data.removedLabels()) {
+				changed.labels.add(entry.label().name());
+			}
+			for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+				changed.nodeProperties.add(entry.key());
+			}
+			for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+				changed.nodeProperties.add(entry.key());
+			}
+			for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+				changed.relationshipProperties.add(entry.key());
+			}
+			for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+				changed.relationshipProperties.add(entry.key());
+			}
+			return changed.isEmpty() ? null : changed;
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, Dependencies changed) {
+			if (changed != null) {
+				invalidate(changed);
+			}
+			if (store != null) {
+				store.committed();
+			}
+		}
+	}
+}
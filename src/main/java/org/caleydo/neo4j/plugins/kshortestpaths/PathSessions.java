@@ -0,0 +1,223 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphalgo.WeightedPath;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * server side store of suspended searches, such that the next k paths of a query can be fetched by its continuation
+ * token without recomputing the previous ones. Sessions expire after a time to live and the least recently used ones
+ * are dropped if the store exceeds its memory cap.
+ *
+ * configured via the system properties kshortestpaths.sessions.ttl (seconds, default 300) and
+ * kshortestpaths.sessions.mb (default 16)
+ *
+ * @author sam
+ *
+ */
+public class PathSessions {
+	private static final long TTL = TimeUnit.SECONDS.toNanos(Long.getLong("kshortestpaths.sessions.ttl", 300));
+	private static final long MAX_BYTES = Long.getLong("kshortestpaths.sessions.mb", 16) << 20;
+
+	/**
+	 * the response header holding the continuation token of a query
+	 */
+	public static final String CONTINUATION_HEADER = "X-Continuation-Token";
+
+	private static final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+	private static long bytes = 0;
+
+	/**
+	 * @return a new continuation token
+	 */
+	public static String newToken() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * stores the given session, it replaces and closes a previous one of the same token
+	 */
+	public static void put(String token, Session session) {
+		session.suspend();
+		session.touched = System.nanoTime();
+		session.bytes = session.computeBytes();
+		synchronized (sessions) {
+			Session old = sessions.put(token, session);
+			if (old != null) {
+				bytes -= old.bytes;
+				old.close();
+			}
+			bytes += session.bytes;
+			evict(session.touched);
+		}
+	}
+
+	/**
+	 * removes the session of the given token for resuming it, see {@link #put(String, Session)} to store it again
+	 *
+	 * @return the session or null if it is unknown or expired
+	 */
+	public static Session take(String token) {
+		synchronized (sessions) {
+			evict(System.nanoTime());
+			Session session = sessions.remove(token);
+			if (session != null) {
+				bytes -= session.bytes;
+			}
+			return session;
+		}
+	}
+
+	/**
+	 * drops the expired sessions and the least recently used ones above the memory cap
+	 */
+	private static void evict(long now) {
+		for (Iterator<Session> it = sessions.values().iterator(); it.hasNext();) {
+			Session s = it.next();
+			if (bytes <= MAX_BYTES && now - s.touched < TTL) {
+				break;
+			}
+			bytes -= s.bytes;
+			s.close();
+			it.remove();
+		}
+	}
+
+	public static int size() {
+		synchronized (sessions) {
+			return sessions.size();
+		}
+	}
+
+	/**
+	 * a suspended search
+	 */
+	public interface Continuation {
+		/**
+		 * continues the search for the next k paths within the current transaction
+		 */
+		void next(int k, Trace trace, IPathReadyListener listener);
+
+		boolean isExhausted();
+
+		/**
+		 * drops the caches that can be recomputed, called before the search is stored
+		 */
+		void suspend();
+
+		/**
+		 * @return the approximate memory footprint
+		 */
+		long bytes();
+
+		/**
+		 * releases the resources of the search
+		 */
+		void close();
+	}
+
+	/**
+	 * a query and its suspended search. If a commit changed the graph in the mean time or the search isn't known, e.g.
+	 * the first page was served from the cache, the search is restarted and the already delivered paths are skipped.
+	 */
+	public static final class Session {
+		private final GraphDatabaseService db;
+		private final CacheWarmer.Query query;
+		private int delivered;
+		private PathSessions.Continuation search;
+		private long version;
+
+		private long touched;
+		private long bytes;
+
+		/**
+		 * @param search
+		 *            the search that delivered the paths or null to restart on resume
+		 * @param version
+		 *            the {@link PathResultCache} version the search started at
+		 */
+		public Session(GraphDatabaseService db, CacheWarmer.Query query, int delivered, Continuation search,
+				long version) {
+			this.db = db;
+			this.query = query;
+			this.delivered = delivered;
+			this.search = search;
+			this.version = version;
+		}
+
+		public CacheWarmer.Query getQuery() {
+			return query;
+		}
+
+		/**
+		 * continues the search for the next k paths
+		 *
+		 * @return whether more paths may follow
+		 */
+		public boolean next(int k, Trace trace, final IPathReadyListener listener) {
+			PathResultCache cache = PathResultCache.of(db);
+			if (search != null && version != cache.getVersion()) {
+				trace.log("restart changed:", this);
+				close();
+			}
+			IPathReadyListener counting = new IPathReadyListener() {
+				@Override
+				public void onPathReady(WeightedPath path) {
+					delivered++;
+					listener.onPathReady(path);
+				}
+			};
+			if (search == null) {
+				version = cache.getVersion();
+				final int skip = delivered;
+				delivered = 0;
+				search = query.withK(skip + k).search(db, trace, new IPathReadyListener() {
+					@Override
+					public void onPathReady(WeightedPath path) {
+						if (delivered < skip) {
+							delivered++;
+						} else {
+							counting.onPathReady(path);
+						}
+					}
+				});
+			} else {
+				search.next(k, trace, counting);
+			}
+			if (search == null) {
+				return false;
+			}
+			if (search.isExhausted()) {
+				search.close();
+				return false;
+			}
+			return true;
+		}
+
+		void suspend() {
+			if (search != null) {
+				search.suspend();
+			}
+		}
+
+		long computeBytes() {
+			return 256 + (search == null ? 0 : search.bytes());
+		}
+
+		void close() {
+			if (search != null) {
+				search.close();
+				search = null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Session [delivered=" + delivered + ", search=" + search + "]";
+		}
+	}
+}
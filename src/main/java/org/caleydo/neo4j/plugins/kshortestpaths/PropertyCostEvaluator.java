@@ -0,0 +1,160 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphalgo.CostEvaluator;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Relationship;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * native declarative cost function: a base cost plus surcharges for relationship properties, without any scripting.
+ *
+ * <pre>
+ * { "baseCost": 1.0, "propertyCosts": { "size": { "big": 2.0, "small": 1.0 }, "isSet": 0.5 } }
+ * </pre>
+ *
+ * a property mapped to a number adds the cost whenever the property is set, a property mapped to a table adds the
+ * cost of the matching value (for array values the costs of all matching elements).
+ *
+ * @author sam
+ *
+ */
+public class PropertyCostEvaluator implements CostEvaluator<Double> {
+	public static final String PREFIX = "profile:";
+
+	private final double baseCost;
+	private final String[] keys;
+	private final int[] keyIds;
+	/**
+	 * per property either a Double (fixed surcharge) or a Map&lt;String,Double&gt; (surcharge per value)
+	 */
+	private final Object[] costs;
+	private final GraphTokens tokens;
+	private final Object[] values;
+
+	public PropertyCostEvaluator(double baseCost, Map<String, Object> propertyCosts, GraphTokens tokens) {
+		this.baseCost = baseCost;
+		this.tokens = tokens != null && tokens.isAvailable() ? tokens : null;
+		List<String> k = new ArrayList<>();
+		List<Object> c = new ArrayList<>();
+		if (propertyCosts != null) {
+			for (Map.Entry<String, Object> entry : propertyCosts.entrySet()) {
+				Object cost = toCost(entry.getValue());
+				if (cost != null) {
+					k.add(entry.getKey());
+					c.add(cost);
+				}
+			}
+		}
+		this.keys = k.toArray(new String[k.size()]);
+		this.costs = c.toArray();
+		this.keyIds = new int[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			keyIds[i] = this.tokens == null ? -1 : this.tokens.propertyKeyId(keys[i]);
+		}
+		this.values = new Object[keys.length];
+	}
+
+	private static Object toCost(Object desc) {
+		if (desc instanceof Number) {
+			return ((Number) desc).doubleValue();
+		}
+		if (desc instanceof Map<?, ?>) {
+			Map<String, Double> r = new HashMap<>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) desc).entrySet()) {
+				if (entry.getValue() instanceof Number) {
+					r.put(entry.getKey().toString(), ((Number) entry.getValue()).doubleValue());
+				}
+			}
+			return r;
+		}
+		return null;
+	}
+
+	public static boolean isProfile(String costFunction) {
+		return costFunction != null && costFunction.startsWith(PREFIX);
+	}
+
+	/**
+	 * @param desc
+	 *            the json profile with or without {@link #PREFIX}
+	 */
+	@SuppressWarnings("unchecked")
+	public static PropertyCostEvaluator parse(String desc, GraphTokens tokens) {
+		if (desc.startsWith(PREFIX)) {
+			desc = desc.substring(PREFIX.length());
+		}
+		Map<String, Object> m;
+		try {
+			m = new Gson().fromJson(desc, Map.class);
+		} catch (JsonSyntaxException e) {
+			throw new IllegalArgumentException("invalid cost profile: " + desc, e);
+		}
+		Object base = m == null ? null : m.get("baseCost");
+		Object props = m == null ? null : m.get("propertyCosts");
+		return new PropertyCostEvaluator(base instanceof Number ? ((Number) base).doubleValue() : 1.0,
+				props instanceof Map<?, ?> ? (Map<String, Object>) props : null, tokens);
+	}
+
+	@Override
+	public Double getCost(Relationship relationship, Direction direction) {
+		return cost(relationship);
+	}
+
+	public double cost(Relationship rel) {
+		if (keys.length == 0) {
+			return baseCost;
+		}
+		if (tokens != null && GraphTokens.isReal(rel)) {
+			tokens.relationshipProperties(rel.getId(), keyIds, values);
+		} else {
+			for (int i = 0; i < keys.length; ++i) {
+				values[i] = rel.getProperty(keys[i], null);
+			}
+		}
+		double total = baseCost;
+		for (int i = 0; i < values.length; ++i) {
+			Object value = values[i];
+			if (value == null) {
+				continue;
+			}
+			Object cost = costs[i];
+			if (cost instanceof Double) {
+				total += (Double) cost;
+				continue;
+			}
+			@SuppressWarnings("unchecked")
+			Map<String, Double> table = (Map<String, Double>) cost;
+			if (value instanceof Object[]) {
+				for (Object vi : (Object[]) value) {
+					total += lookup(table, vi);
+				}
+			} else {
+				total += lookup(table, value);
+			}
+		}
+		return total;
+	}
+
+	private static double lookup(Map<String, Double> table, Object value) {
+		Double c = table.get(String.valueOf(value));
+		return c == null ? 0 : c.doubleValue();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append("PropertyCostEvaluator [baseCost=").append(baseCost);
+		for (int i = 0; i < keys.length; ++i) {
+			b.append(", ").append(keys[i]).append('=').append(costs[i]);
+		}
+		b.append(']');
+		return b.toString();
+	}
+}
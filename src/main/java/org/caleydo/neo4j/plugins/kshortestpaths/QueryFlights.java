@@ -0,0 +1,141 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.graphdb.Path;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * single flight coalescing of identical concurrent queries: the first request of a query runs the search (the
+ * leader), requests of the same query arriving while it runs follow it. They get the already found paths replayed
+ * and then the following ones as they are found.
+ *
+ * @author sam
+ *
+ */
+public class QueryFlights {
+	private static final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the running flight of the given query to follow or a new one to lead, see {@link Flight#isLeader()}
+	 */
+	public static Flight join(String key) {
+		return flights.compute(key, (k, running) -> running != null && running.addFollower() ? running : new Flight(k));
+	}
+
+	/**
+	 * @return a new flight to lead or null if the query is already running
+	 */
+	public static Flight lead(String key) {
+		Flight flight = new Flight(key);
+		return flights.putIfAbsent(key, flight) == null ? flight : null;
+	}
+
+	public static final class Flight {
+		private final String key;
+		private final Thread leader = Thread.currentThread();
+		private final CompactPaths paths = new CompactPaths();
+		private int followers = 0;
+		private boolean done = false;
+
+		private Flight(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return whether the current thread runs the search of this flight
+		 */
+		public boolean isLeader() {
+			return leader == Thread.currentThread();
+		}
+
+		private synchronized boolean addFollower() {
+			if (done) {
+				return false;
+			}
+			followers++;
+			return true;
+		}
+
+		public synchronized boolean hasFollowers() {
+			return followers > 0;
+		}
+
+		/**
+		 * adds a found path and wakes up the followers
+		 */
+		public synchronized void add(Path path) {
+			paths.add(path);
+			notifyAll();
+		}
+
+		public CompactPaths getPaths() {
+			return paths;
+		}
+
+		/**
+		 * ends this flight, queries arriving afterwards start a new one
+		 */
+		public void finish() {
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+			flights.remove(key, this);
+		}
+
+		/**
+		 * ends this flight early unless someone follows it
+		 *
+		 * @return whether it was ended
+		 */
+		public boolean abandon() {
+			synchronized (this) {
+				if (followers > 0) {
+					return false;
+				}
+				done = true;
+			}
+			flights.remove(key, this);
+			return true;
+		}
+
+		/**
+		 * writes all paths of this flight as elements of the current array, blocking until it is finished
+		 */
+		public void replayTo(JsonWriter writer) throws IOException {
+			try {
+				int i = 0;
+				while (true) {
+					int n;
+					synchronized (this) {
+						while (paths.size() <= i && !done) {
+							wait();
+						}
+						n = paths.size();
+						if (n <= i) {
+							return;
+						}
+					}
+					for (; i < n; ++i) {
+						paths.writeTo(writer, i);
+					}
+					writer.flush();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				synchronized (this) {
+					followers--;
+				}
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Flight [paths=" + paths.size() + ", followers=" + followers + ", done=" + done + "]";
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IConstraint;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IPathConstraint;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.PathConstraints;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Path;
+
+import com.google.gson.Gson;
+
+/**
+ * bounded cache of the paths enumerated by {@link KShortestPathsAlgo2} before testing the path constraints, per
+ * traversal: start, end, directions, inline relationships and the per element constraints, that is everything the
+ * expansion depends on. A query refined by constraints that are just tested on the found paths, e.g. an added $not,
+ * filters the known paths again instead of traversing and just extends the enumeration if too few of them pass.
+ *
+ * configured via the system property kshortestpaths.rawPaths.elements (the maximal number of cached nodes and
+ * relationships, default 1M, 0 disables it)
+ *
+ * @author sam
+ *
+ */
+public class RawPathCache {
+	private static final long MAX_ELEMENTS = Long.getLong("kshortestpaths.rawPaths.elements", 1 << 20);
+
+	private static final Map<GraphDatabaseService, RawPathCache> caches = new WeakHashMap<>();
+
+	private final long maxElements;
+	private final LinkedHashMap<String, Traversal> traversals = new LinkedHashMap<>(16, 0.75f, true);
+	private long elements = 0;
+
+	public RawPathCache(long maxElements) {
+		this.maxElements = maxElements;
+	}
+
+	/**
+	 * @return the shared cache of the given database or null if disabled
+	 */
+	public static RawPathCache of(GraphDatabaseService db) {
+		if (MAX_ELEMENTS <= 0) {
+			return null;
+		}
+		if (db instanceof FakeGraphDatabase) {
+			db = ((FakeGraphDatabase) db).getDelegate();
+		}
+		synchronized (caches) {
+			RawPathCache cache = caches.get(db);
+			if (cache == null) {
+				cache = new RawPathCache(MAX_ELEMENTS);
+				caches.put(db, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * @param constraints
+	 *            the parsed constraints, just the ones limiting the expansion are part of the key
+	 * @return the key of a traversal
+	 */
+	public static String key(FakeNode start, FakeNode end, Map<String, Object> constraints, IPathConstraint parsed) {
+		Gson gson = new Gson();
+		Object dir = constraints == null ? null : constraints.get("dir");
+		Object inline = constraints == null ? null : constraints.get("inline");
+		return PathResultCache.key(Arrays.toString(start.getMemberIds()), Arrays.toString(end.getMemberIds()),
+				PathResultCache.normalize(gson.toJson(dir)), PathResultCache.normalize(gson.toJson(inline)),
+				toCypher(PathConstraints.getPerNodeConstraint(parsed)),
+				toCypher(PathConstraints.getPerRelConstraint(parsed)));
+	}
+
+	private static String toCypher(IConstraint c) {
+		if (c == null) {
+			return "";
+		}
+		StringBuilder b = new StringBuilder();
+		Map<String, Object> params = new TreeMap<>();
+		c.toCypher(b, "e", params);
+		for (Map.Entry<String, Object> param : params.entrySet()) {
+			b.append(' ').append(param.getKey()).append('=').append(Arrays.deepToString(new Object[] { param.getValue() }));
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return the cached traversal of the given key, a new one if unknown or computed before the given
+	 *         {@link PathResultCache#getVersion() version}
+	 */
+	public synchronized Traversal get(String key, long version) {
+		Traversal t = traversals.get(key);
+		if (t == null || t.version != version) {
+			if (t != null) {
+				elements -= t.elements;
+			}
+			t = new Traversal(version);
+			traversals.put(key, t);
+		}
+		return t;
+	}
+
+	/**
+	 * appends the i-th path of a segment unless known or the cache is full
+	 */
+	synchronized void add(Traversal t, Segment s, int i, Path path) {
+		if (s.paths.size() != i || t.evicted) {
+			return;
+		}
+		int size = path.length() + 1;
+		for (Iterator<Traversal> it = traversals.values().iterator(); elements + size > maxElements && it.hasNext();) {
+			Traversal evict = it.next();
+			if (evict != t) {
+				elements -= evict.elements;
+				evict.evicted = true;
+				it.remove();
+			}
+		}
+		if (elements + size > maxElements) {
+			return;
+		}
+		s.paths.add(path);
+		t.elements += size;
+		elements += size;
+	}
+
+	/**
+	 * marks a segment as completely known if all its i paths are cached
+	 */
+	synchronized void complete(Segment s, int i, int length) {
+		if (s.paths.size() == i) {
+			s.complete = true;
+			s.length = length;
+		}
+	}
+
+	public synchronized int size() {
+		return traversals.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RawPathCache [traversals=" + traversals.size() + ", elements=" + elements + "]";
+	}
+
+	/**
+	 * the known paths of a traversal, per segment
+	 */
+	public final class Traversal {
+		private final long version;
+		private final Map<Integer, Segment> segments = new HashMap<>();
+		private long elements = 0;
+		private boolean evicted = false;
+
+		private Traversal(long version) {
+			this.version = version;
+		}
+
+		/**
+		 * @param id
+		 *            the depth of the paths or the negative maximal length for the shortest ones
+		 */
+		public Segment segment(int id) {
+			synchronized (RawPathCache.this) {
+				Segment s = segments.get(id);
+				if (s == null) {
+					s = new Segment();
+					segments.put(id, s);
+				}
+				return s;
+			}
+		}
+
+		/**
+		 * @return the i-th path of the given segment or null if unknown
+		 */
+		public Path get(Segment s, int i) {
+			synchronized (RawPathCache.this) {
+				return i < s.paths.size() ? s.paths.get(i) : null;
+			}
+		}
+
+		public boolean isComplete(Segment s) {
+			synchronized (RawPathCache.this) {
+				return s.complete;
+			}
+		}
+
+		public void add(Segment s, int i, Path path) {
+			RawPathCache.this.add(this, s, i, path);
+		}
+
+		public void complete(Segment s, int i, int length) {
+			RawPathCache.this.complete(s, i, length);
+		}
+	}
+
+	/**
+	 * the paths of a depth in the order of the traversal
+	 */
+	public static final class Segment {
+		private final List<Path> paths = new ArrayList<>();
+		private boolean complete = false;
+		/**
+		 * the traversed length of the paths of a complete shortest path segment
+		 */
+		private int length = -1;
+
+		public int getLength() {
+			return length;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.caleydo.neo4j.plugins.kshortestpaths;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * per request trace capturing the last entries in a bounded ring buffer. The disabled {@link #OFF} trace ignores
+ * everything, messages are only built if enabled: either via the fixed arity / {@link Supplier} variants of
+ * {@link #log} or by guarding with {@link #isEnabled()} in hot paths.
+ *
+ * @author sam
+ *
+ */
+public final class Trace {
+	/**
+	 * number of entries kept by an enabled trace, configurable via the system property kshortestpaths.trace.entries
+	 */
+	private static final int CAPACITY = Integer.getInteger("kshortestpaths.trace.entries", 1024);
+
+	public static final Trace OFF = new Trace(0);
+
+	private final boolean enabled;
+	private final long start = System.nanoTime();
+	private final long[] times;
+	private final String[] messages;
+	private long count = 0;
+
+	public Trace(int capacity) {
+		this.enabled = capacity > 0;
+		this.times = new long[capacity];
+		this.messages = new String[capacity];
+	}
+
+	public static Trace of(boolean debug) {
+		return debug ? new Trace(CAPACITY) : OFF;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void log(String message) {
+		if (enabled) {
+			add(message);
+		}
+	}
+
+	public void log(Supplier<String> message) {
+		if (enabled) {
+			add(message.get());
+		}
+	}
+
+	public void log(String label, Object a) {
+		if (enabled) {
+			add(label + ' ' + a);
+		}
+	}
+
+	public void log(String label, Object a, Object b) {
+		if (enabled) {
+			add(label + ' ' + a + ' ' + b);
+		}
+	}
+
+	private synchronized void add(String message) {
+		int i = (int) (count++ % messages.length);
+		times[i] = System.nanoTime() - start;
+		messages[i] = message;
+	}
+
+	/**
+	 * @return the number of entries dropped since the buffer was full
+	 */
+	public synchronized long getDropped() {
+		return Math.max(0, count - messages.length);
+	}
+
+	/**
+	 * @return the kept entries, oldest first
+	 */
+	public synchronized List<String> getEntries() {
+		List<String> r = new ArrayList<>();
+		long first = count - Math.min(count, messages.length);
+		for (long j = first; j < count; ++j) {
+			r.add(messages[(int) (j % messages.length)]);
+		}
+		return r;
+	}
+
+	/**
+	 * writes the trace as <code>{"trace": [{"ms": 1.2, "msg": "..."}, ...], "dropped": 0}</code>
+	 */
+	public synchronized void writeTo(JsonWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("trace").beginArray();
+		long first = count - Math.min(count, messages.length);
+		for (long j = first; j < count; ++j) {
+			int i = (int) (j % messages.length);
+			writer.beginObject().name("ms").value(times[i] / 1e6).name("msg").value(messages[i]).endObject();
+		}
+		writer.endArray();
+		writer.name("dropped").value(getDropped());
+		writer.endObject();
+	}
+
+	@Override
+	public String toString() {
+		return "Trace [enabled=" + enabled + ", entries=" + Math.min(count, messages.length) + "]";
+	}
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -77,7 +78,7 @@ public class CompositePathConstraint implements ICompositePathContraint, IConstr
 
 
 	@Override
-	public void toCypher(StringBuilder b, String var) {
+	public void toCypher(StringBuilder b, String var, Map<String, Object> params) {
 		b.append("(");
 		String in = isAnd ? " and " : " or ";
 		List<String> l = new ArrayList<>();
@@ -88,7 +89,7 @@ public class CompositePathConstraint implements ICompositePathContraint, IConstr
 			IConstraint cc = (IConstraint)c;
 
 			StringBuilder binner = new StringBuilder();
-			cc.toCypher(binner, var);
+			cc.toCypher(binner, var, params);
 			if (binner.length() > 0) {
 				l.add(binner.toString());
 			}
@@ -1,20 +1,30 @@
 package org.caleydo.neo4j.plugins.kshortestpaths.constraints;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
+import org.caleydo.neo4j.plugins.kshortestpaths.GraphTokens;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.helpers.collection.Pair;
 import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.kernel.impl.api.RelationshipVisitor;
 
 public class DirectionContraints {
 	private final List<Pair<? extends RelationshipType,Direction>> filter;
 	private boolean allSameDir;
+	/**
+	 * if bound: the kernel level lookups, per lookup its direction and type ids (null = all types)
+	 */
+	private GraphTokens tokens;
+	private Direction[] lookupDirs;
+	private int[][] lookupTypes;
 	
 	public DirectionContraints(Map<String, String> directions) {
 		this(parse(directions));
@@ -88,6 +98,71 @@ public class DirectionContraints {
 		return Iterables.concat(r);
 	}
 
+	/**
+	 * resolves the relationship types to token ids once, such that {@link #visit} can be used. Outside of a
+	 * transaction it stays unbound and the embedded api is used.
+	 */
+	public void bind(GraphTokens tokens) {
+		if (tokens == null || !tokens.canTraverse() || !tokens.inTransaction()) {
+			return;
+		}
+		List<Direction> dirs = new ArrayList<>();
+		List<int[]> types = new ArrayList<>();
+		if (this.filter.isEmpty()) {
+			dirs.add(Direction.BOTH);
+			types.add(null);
+		} else if (this.allSameDir) {
+			int[] ids = typeIds(tokens, this.filter);
+			if (ids.length > 0) {
+				dirs.add(this.filter.get(0).other());
+				types.add(ids);
+			}
+		} else {
+			for(Pair<? extends RelationshipType, Direction> p : filter) {
+				int[] ids = typeIds(tokens, Collections.<Pair<? extends RelationshipType, Direction>>singletonList(p));
+				if (ids.length > 0) {
+					dirs.add(p.other());
+					types.add(ids);
+				}
+			}
+		}
+		this.lookupDirs = dirs.toArray(new Direction[dirs.size()]);
+		this.lookupTypes = types.toArray(new int[types.size()][]);
+		this.tokens = tokens;
+	}
+
+	/**
+	 * @return the ids of the existing types
+	 */
+	private static int[] typeIds(GraphTokens tokens, List<Pair<? extends RelationshipType, Direction>> filter) {
+		int[] r = new int[filter.size()];
+		int n = 0;
+		for(Pair<? extends RelationshipType, Direction> p : filter) {
+			int id = tokens.relationshipTypeId(p.first().name());
+			if (id >= 0) {
+				r[n++] = id;
+			}
+		}
+		return Arrays.copyOf(r, n);
+	}
+
+	public boolean isBound() {
+		return tokens != null;
+	}
+
+	public GraphTokens getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * kernel level version of {@link #filter(Node)}, requires {@link #bind(GraphTokens)}
+	 */
+	public void visit(long nodeId, RelationshipVisitor<RuntimeException> visitor) {
+		for (int i = 0; i < lookupDirs.length; ++i) {
+			tokens.visitRelationships(nodeId, lookupDirs[i], lookupTypes[i], visitor);
+		}
+	}
+
 	private RelationshipType[] getRelationshipTypes() {
 		RelationshipType[] r = new RelationshipType[this.filter.size()];
 		for(int i = 0; i < r.length; ++i) {
@@ -101,7 +176,9 @@ public class DirectionContraints {
 		for(Pair<? extends RelationshipType,Direction> entry: this.filter) {
 			r.add(Pair.of(entry.first(), entry.other().reverse()));
 		}
-		return new DirectionContraints(r);
+		DirectionContraints d = new DirectionContraints(r);
+		d.bind(tokens);
+		return d;
 	}
 	
 	@Override
@@ -1,18 +1,24 @@
 package org.caleydo.neo4j.plugins.kshortestpaths.constraints;
 
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import org.caleydo.neo4j.plugins.kshortestpaths.GraphTokens;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.helpers.collection.Pair;
 
 public class ElemConstraint implements IConstraint, IPathConstraint, ISubPathConstraint {
 	private final ISelector selector;
 	private final ValueConstraint constraint;
 	private final boolean nodeContext;
 
+	private LabelMask labelMask;
+	private LabelMask.IMatcher labelMatcher;
+
 	public ElemConstraint(ISelector selector, ValueConstraint constraint, boolean isNodeContext) {
 		super();
 		this.selector = selector;
@@ -37,12 +43,48 @@ public class ElemConstraint implements IConstraint, IPathConstraint, ISubPathCon
 		return null;
 	}
 
+	/**
+	 * @return the property and value if this constraint is a simple property equality in node context else null
+	 */
+	public Pair<String, Object> getPropertyEquality() {
+		if (!this.nodeContext || !(selector instanceof PropertySelector)) {
+			return null;
+		}
+		if (constraint instanceof ValueConstraint.EqualPredicate) {
+			Object value = ((ValueConstraint.EqualPredicate) constraint).getEq();
+			if (value != null && !ValueConstraint.isArray(value)) {
+				return Pair.of(((PropertySelector) selector).getProperty(), value);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * binds this constraint to the tokens of a database, such that label / type tests can be evaluated on token ids
+	 */
+	public void bind(GraphTokens tokens) {
+		this.labelMask = null;
+		this.labelMatcher = null;
+		if (selector != LabelSelector.INSTANCE || !tokens.isAvailable()) {
+			return;
+		}
+		LabelMask mask = new LabelMask(tokens, nodeContext);
+		LabelMask.IMatcher matcher = constraint.toMatcher(mask);
+		if (matcher != null) {
+			this.labelMask = mask;
+			this.labelMatcher = matcher;
+		}
+	}
+
 	@Override
 	public boolean accept(Node node, Relationship rel) {
 		PropertyContainer c  = select(node, rel);
 		if (c == null) { //accept missing ones
 			return true;
 		}
+		if (labelMatcher != null && GraphTokens.isReal(c)) {
+			return labelMatcher.test(labelMask.of(c));
+		}
 		Object value = selector.get(c);
 		return constraint.test(value);
 	}
@@ -96,9 +138,9 @@ public class ElemConstraint implements IConstraint, IPathConstraint, ISubPathCon
 	}
 
 	@Override
-	public void toCypher(StringBuilder b, String var) {
+	public void toCypher(StringBuilder b, String var, Map<String, Object> params) {
 		String key = this.selector.toCypher(var, isNodeContext());
-		this.constraint.toCypher(key, b);
+		this.constraint.toCypher(key, b, params);
 	}
 
 	@Override
@@ -1,12 +1,18 @@
 package org.caleydo.neo4j.plugins.kshortestpaths.constraints;
 
+import java.util.Map;
+
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 
 public interface IConstraint extends IPathConstraint {
 	boolean accept(Node node, Relationship rel);
 	
-	void toCypher(StringBuilder b, String var);
+	/**
+	 * appends this constraint as a Cypher predicate on the given variable, values are added as parameters
+	 * <code>$p0, $p1, ...</code> to the given map, such that equally shaped constraints share the query plan
+	 */
+	void toCypher(StringBuilder b, String var, Map<String, Object> params);
 }
 
 
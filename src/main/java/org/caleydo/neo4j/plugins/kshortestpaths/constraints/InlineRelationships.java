@@ -5,14 +5,19 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Function;
 
-import org.apache.commons.lang.StringUtils;
 import org.caleydo.neo4j.plugins.kshortestpaths.FakeGraphDatabase;
 import org.caleydo.neo4j.plugins.kshortestpaths.FakeRelationship;
+import org.caleydo.neo4j.plugins.kshortestpaths.GraphTokens;
+import org.caleydo.neo4j.plugins.kshortestpaths.Trace;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -25,7 +30,11 @@ public class InlineRelationships {
 	private final IFakeRelationshipFactory factory;
 	private final boolean undirectional;
 	private final long notInlineId;
-	private boolean debug;
+	private Trace trace = Trace.OFF;
+	/**
+	 * if set, the shared precomputed set adjacencies
+	 */
+	private InlineView view;
 	
 	public InlineRelationships(RelationshipType type, final IFakeRelationshipFactory factory, final boolean undirectional, final long notInlineId) {
 		super();
@@ -35,9 +44,13 @@ public class InlineRelationships {
 		this.notInlineId = notInlineId;
 	}
 	
-	public void setDebug(boolean debug) {
-		this.debug = debug;
-		this.factory.setDebug(debug);
+	public void setView(InlineView view) {
+		this.view = view;
+	}
+	
+	public void setTrace(Trace trace) {
+		this.trace = trace;
+		this.factory.setDebug(trace.isEnabled());
 	}
 	
 	@Override
@@ -45,13 +58,13 @@ public class InlineRelationships {
 		return "Inline: "+type.name() + " un: "+undirectional+" not:"+notInlineId+" fac:"+factory;
 	}
 	
-	private void debug(Object ... args) {
-		if (this.debug) {
-			System.out.println(StringUtils.join(args,' '));
-		}
-	}
-	
 	public Iterable<Relationship> inline(Iterable<Relationship> rels, final Node source) {
+		if (view != null && factory instanceof FakeSetRelationshipFactory && GraphTokens.isReal(source)) {
+			Iterable<Relationship> r = inlineFromView(rels, source);
+			if (r != null) {
+				return r;
+			}
+		}
 		//assumption just create new edges don't change existing ones
 		//assumption don't recreate an edge between an already existing one
 		Set<Long> existing = new HashSet<>();
@@ -60,7 +73,9 @@ public class InlineRelationships {
 		for (Relationship s : rels) {
 			//System.out.println(s+" "+s.getStartNode()+" "+s.getEndNode()+" "+s.getEndNode().equals(source));
 			Node toInline = s.getOtherNode(source);
-			debug(s.getType(), s.getEndNode(), !skip(toInline));
+			if (trace.isEnabled()) {
+				trace.log(s.getType().name(), s.getEndNode(), !skip(toInline));
+			}
 			if (s.isType(type) && s.getEndNode().equals(source) && !skip(toInline)) { //just incoming edges
 				//debug("try to inline: "+toInline);
 				for(Relationship i : toInline.getRelationships(type)) {
@@ -109,6 +124,59 @@ public class InlineRelationships {
 
 	
 
+	/**
+	 * same as {@link #inline(Iterable, Node)} but based on the precomputed adjacency of the view
+	 *
+	 * @return null if the view can't be used for the given relationships
+	 */
+	private Iterable<Relationship> inlineFromView(Iterable<Relationship> rels, final Node source) {
+		List<Relationship> bad = new ArrayList<>();
+		PrimitiveLongSet existing = Primitive.longSet();
+		PrimitiveLongSet inlinedRels = Primitive.longSet();
+		for (Relationship s : rels) {
+			Node toInline = s.getOtherNode(source);
+			if (s.isType(type) && s.getEndNode().equals(source) && !skip(toInline)) {
+				if (!GraphTokens.isReal(s)) {
+					return null;
+				}
+				inlinedRels.add(s.getId());
+			} else {
+				bad.add(s);
+				existing.add(toInline.getId());
+			}
+		}
+		if (inlinedRels.isEmpty()) {
+			return bad;
+		}
+		InlineView.Adjacency a = view.adjacency(source);
+		FakeSetRelationshipFactory f = (FakeSetRelationshipFactory) factory;
+		List<Relationship> reversed = undirectional ? new ArrayList<Relationship>() : null;
+		long[] sets = new long[a.rels.length];
+		for (int j = 0; j < a.targets.length; ++j) {
+			long target = a.targets[j];
+			if (existing.contains(target)) {
+				continue;
+			}
+			int n = 0;
+			for (int via : a.via[j]) {
+				if (inlinedRels.contains(a.rels[via])) {
+					sets[n++] = a.sets[via];
+				}
+			}
+			if (n == 0) {
+				continue;
+			}
+			bad.add(f.create(source, target, sets, n, view, false));
+			if (reversed != null) {
+				reversed.add(f.create(source, target, sets, n, view, true));
+			}
+		}
+		if (reversed != null) {
+			bad.addAll(reversed);
+		}
+		return bad;
+	}
+
 	private boolean skip(Node node) {
 		return node.getId() == notInlineId;
 	}
@@ -122,7 +190,11 @@ public class InlineRelationships {
 		boolean undirectional = Objects.equals(desc.get("undirectional"),Boolean.TRUE);
 		long notInlineId = desc.containsKey("dontInline") ? ((Number)desc.get("dontInline")).longValue() : -1;
 		IFakeRelationshipFactory factory = toFactory(desc, db);
-		return new InlineRelationships(type, factory, undirectional, notInlineId);
+		InlineRelationships r = new InlineRelationships(type, factory, undirectional, notInlineId);
+		if (db != null) {
+			r.setView(InlineView.of(db.getDelegate(), type, (Map<String, String>) desc.get("aggregate"), desc.get("toaggregate").toString()));
+		}
+		return r;
 	}
 
 	private static IFakeRelationshipFactory toFactory(Map<String, Object> desc, FakeGraphDatabase db) {
@@ -167,7 +239,7 @@ public class InlineRelationships {
 			Node source = sit[0];
 			Node target = sit[2];
 			
-			long id = FakeRelationship.id(reverse ? target : source, reverse ? source : target);
+			long id = FakeRelationship.id(w, reverse ? target : source, reverse ? source : target);
 			if (w.hasFake(id)) {
 				return w.getRelationshipById(id);
 			}
@@ -192,7 +264,38 @@ public class InlineRelationships {
 			for(String key : m.keySet()) {
 				properties.put(key.toString(), Iterables.asArray(String.class, m.get(key)));
 			}
-			Relationship rel = new FakeRelationship(source.getGraphDatabase(),type, reverse ? target : source, reverse ? source : target, properties);
+			Relationship rel = new FakeRelationship(source.getGraphDatabase(), id, type, reverse ? target : source, reverse ? source : target, properties);
+			w.putFake(rel);
+			return rel;
+		}
+
+		/**
+		 * creates the relationship from source to target via the given set nodes using the precomputed aggregates
+		 * of the view
+		 */
+		public Relationship create(Node source, long targetId, long[] sets, int n, InlineView view, boolean reverse) {
+			GraphDatabaseService db = source.getGraphDatabase();
+			Node target = db.getNodeById(targetId);
+			long id = FakeRelationship.id(w, reverse ? target : source, reverse ? source : target);
+			if (w.hasFake(id)) {
+				return w.getRelationshipById(id);
+			}
+			Map<String,Object> properties = new HashMap<String, Object>();
+			properties.put(flag, true);
+			Map<String,Collection<String>> m = new HashMap<String, Collection<String>>();
+			for (int i = 0; i < n; ++i) {
+				String[] c = view.contribution(db, sets[i]);
+				for (int j = 0; j < c.length; j += 2) {
+					if (!m.containsKey(c[j])) {
+						m.put(c[j],  new ArrayList<String>());
+					}
+					m.get(c[j]).add(c[j + 1]);
+				}
+			}
+			for(String key : m.keySet()) {
+				properties.put(key, Iterables.asArray(String.class, m.get(key)));
+			}
+			Relationship rel = new FakeRelationship(db, id, type, reverse ? target : source, reverse ? source : target, properties);
 			w.putFake(rel);
 			return rel;
 		}
@@ -0,0 +1,339 @@
+package org.caleydo.neo4j.plugins.kshortestpaths.constraints;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.caleydo.neo4j.plugins.kshortestpaths.GraphTokens;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * materialized view of the set inlining of {@link InlineRelationships}: per node the nodes reachable via a set node
+ * and per set node its aggregated values. Both are computed once on first use, shared by all requests with the same
+ * inline description and invalidated from transaction events for the set nodes whose relationships, labels or
+ * aggregated property changed.
+ *
+ * at most kshortestpaths.inlineViews.max (system property, default 8) views are kept per database, the least recently
+ * used one is dropped.
+ *
+ * @author sam
+ *
+ */
+public class InlineView {
+	/**
+	 * max number of cached nodes, the view is cleared once exceeded
+	 */
+	private static final int MAX_ENTRIES = 1 << 20;
+	private static final int MAX_VIEWS = Integer.getInteger("kshortestpaths.inlineViews.max", 8);
+	private static final Map<GraphDatabaseService, LinkedHashMap<String, InlineView>> views = new WeakHashMap<>();
+
+	private final RelationshipType type;
+	private final Map<String, String> aggregateByLabel;
+	private final String aggregateInlined;
+
+	private final PrimitiveLongObjectMap<Adjacency> adjacencies = Primitive.longObjectMap();
+	private final PrimitiveLongObjectMap<String[]> contributions = Primitive.longObjectMap();
+	private final InvalidationHandler handler = new InvalidationHandler();
+	private final GraphTokens tokens;
+	/**
+	 * incremented by every invalidation, a value computed before is outdated
+	 */
+	private long version = 0;
+	/**
+	 * no longer invalidated, requests still using it compute everything on demand
+	 */
+	private boolean dropped = false;
+
+	private InlineView(GraphTokens tokens, RelationshipType type, Map<String, String> aggregateByLabel,
+			String aggregateInlined) {
+		this.tokens = tokens;
+		this.type = type;
+		this.aggregateByLabel = aggregateByLabel;
+		this.aggregateInlined = aggregateInlined;
+	}
+
+	/**
+	 * @return the shared view of the given database and inline description, the first call registers the
+	 *         invalidation handler
+	 */
+	public static InlineView of(GraphDatabaseService db, RelationshipType type, Map<String, String> aggregateByLabel,
+			String aggregateInlined) {
+		String key = type.name() + '|' + aggregateByLabel + '|' + aggregateInlined;
+		synchronized (views) {
+			LinkedHashMap<String, InlineView> m = views.get(db);
+			if (m == null) {
+				m = new LinkedHashMap<>(16, 0.75f, true);
+				views.put(db, m);
+			}
+			InlineView view = m.get(key);
+			if (view == null) {
+				view = new InlineView(GraphTokens.of(db), type, aggregateByLabel, aggregateInlined);
+				db.registerTransactionEventHandler(view.handler);
+				m.put(key, view);
+				for (Iterator<InlineView> it = m.values().iterator(); m.size() > MAX_VIEWS;) {
+					it.next().drop(db);
+					it.remove();
+				}
+			}
+			return view;
+		}
+	}
+
+	/**
+	 * @return the inlined adjacency of the given node, computed in the current transaction on a miss
+	 */
+	public Adjacency adjacency(Node source) {
+		long id = source.getId();
+		long version;
+		synchronized (this) {
+			Adjacency a = adjacencies.get(id);
+			if (a != null) {
+				return a;
+			}
+			version = this.version;
+		}
+		Adjacency a = new Adjacency(source);
+		if (!isCacheable()) {
+			return a;
+		}
+		synchronized (this) {
+			if (dropped || version != this.version) {
+				return a;
+			}
+			if (adjacencies.size() >= MAX_ENTRIES) {
+				adjacencies.clear();
+			}
+			adjacencies.put(id, a);
+		}
+		return a;
+	}
+
+	/**
+	 * @return the aggregated (key, value) pairs contributed by the given set node, flattened
+	 */
+	public String[] contribution(GraphDatabaseService db, long id) {
+		long version;
+		synchronized (this) {
+			String[] c = contributions.get(id);
+			if (c != null) {
+				return c;
+			}
+			version = this.version;
+		}
+		Node set = db.getNodeById(id);
+		String[] c = new String[0];
+		for (Label l : set.getLabels()) {
+			String key = aggregateByLabel.get(l.name());
+			if (key != null) {
+				c = Arrays.copyOf(c, c.length + 2);
+				c[c.length - 2] = key;
+				c[c.length - 1] = set.getProperty(aggregateInlined).toString();
+			}
+		}
+		if (!isCacheable()) {
+			return c;
+		}
+		synchronized (this) {
+			if (dropped || version != this.version) {
+				return c;
+			}
+			if (contributions.size() >= MAX_ENTRIES) {
+				contributions.clear();
+			}
+			contributions.put(id, c);
+		}
+		return c;
+	}
+
+	/**
+	 * @return whether a computed value reflects committed state, i.e. the caller's transaction has no changes
+	 */
+	private boolean isCacheable() {
+		return !tokens.hasTransactionChanges();
+	}
+
+	private synchronized void invalidate(PrimitiveLongSet nodes) {
+		if (nodes != null && nodes.isEmpty()) {
+			return;
+		}
+		version++;
+		if (nodes == null) {
+			adjacencies.clear();
+			contributions.clear();
+			return;
+		}
+		for (PrimitiveLongIterator it = nodes.iterator(); it.hasNext();) {
+			long id = it.next();
+			adjacencies.remove(id);
+			contributions.remove(id);
+		}
+	}
+
+	private void drop(GraphDatabaseService db) {
+		try {
+			db.unregisterTransactionEventHandler(handler);
+		} catch (IllegalStateException e) {
+			// already unregistered
+		}
+		synchronized (this) {
+			dropped = true;
+			adjacencies.clear();
+			contributions.clear();
+		}
+	}
+
+	/**
+	 * @return the number of views of the given database
+	 */
+	public static int size(GraphDatabaseService db) {
+		synchronized (views) {
+			Map<String, InlineView> m = views.get(db);
+			return m == null ? 0 : m.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "InlineView [" + type.name() + ", nodes=" + adjacencies.size() + "]";
+	}
+
+	/**
+	 * the nodes reachable from a source via an incoming set relationship: <code>(set)-[type]->(source)</code>,
+	 * <code>(set)-[type]-(target)</code>
+	 */
+	public final class Adjacency {
+		/**
+		 * the incoming set relationships and their set nodes
+		 */
+		final long[] rels;
+		final long[] sets;
+		final long[] targets;
+		/**
+		 * per target the indices of the set relationships it is reachable by
+		 */
+		final int[][] via;
+
+		Adjacency(Node source) {
+			long sourceId = source.getId();
+			long[] rels = new long[4];
+			long[] sets = new long[4];
+			int n = 0;
+			Map<Long, int[]> byTarget = new HashMap<>();
+			for (Relationship s : source.getRelationships(Direction.INCOMING, type)) {
+				Node set = s.getStartNode();
+				if (n == rels.length) {
+					rels = Arrays.copyOf(rels, n * 2);
+					sets = Arrays.copyOf(sets, n * 2);
+				}
+				rels[n] = s.getId();
+				sets[n] = set.getId();
+				for (Relationship i : set.getRelationships(type)) {
+					if (i.getId() == s.getId()) {
+						continue;
+					}
+					long target = i.getOtherNodeId(set.getId());
+					if (target == sourceId) { // no self loops
+						continue;
+					}
+					int[] v = byTarget.get(target);
+					v = v == null ? new int[1] : Arrays.copyOf(v, v.length + 1);
+					v[v.length - 1] = n;
+					byTarget.put(target, v);
+				}
+				n++;
+			}
+			this.rels = Arrays.copyOf(rels, n);
+			this.sets = Arrays.copyOf(sets, n);
+			this.targets = new long[byTarget.size()];
+			this.via = new int[byTarget.size()][];
+			int j = 0;
+			for (Map.Entry<Long, int[]> e : byTarget.entrySet()) {
+				targets[j] = e.getKey();
+				via[j++] = e.getValue();
+			}
+		}
+
+		public boolean isEmpty() {
+			return targets.length == 0;
+		}
+	}
+
+	private final class InvalidationHandler extends TransactionEventHandler.Adapter<PrimitiveLongSet> {
+		/**
+		 * collects the affected nodes while the changes are still readable
+		 *
+		 * @return the affected nodes, null if all are
+		 */
+		@Override
+		public PrimitiveLongSet beforeCommit(TransactionData data) throws Exception {
+			PrimitiveLongSet affected = Primitive.longSet();
+			try {
+				for (Relationship r : data.createdRelationships()) {
+					if (r.isType(type)) {
+						addWithNeighbors(r.getStartNode(), affected);
+						addWithNeighbors(r.getEndNode(), affected);
+					}
+				}
+				for (LabelEntry entry : data.assignedLabels()) {
+					addIfAggregated(entry.label(), entry.node(), affected);
+				}
+				for (LabelEntry entry : data.removedLabels()) {
+					addIfAggregated(entry.label(), entry.node(), affected);
+				}
+				for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+					if (entry.key().equals(aggregateInlined)) {
+						addWithNeighbors(entry.entity(), affected);
+					}
+				}
+				for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+					if (entry.key().equals(aggregateInlined)) {
+						addWithNeighbors(entry.entity(), affected);
+					}
+				}
+				for (Relationship r : data.deletedRelationships()) {
+					if (r.isType(type)) {
+						// the end points of deleted relationships can't be resolved anymore
+						return null;
+					}
+				}
+			} catch (RuntimeException e) { // e.g. the node was deleted, too
+				return null;
+			}
+			return affected;
+		}
+
+		private void addIfAggregated(Label label, Node node, PrimitiveLongSet affected) {
+			if (aggregateByLabel.containsKey(label.name())) {
+				addWithNeighbors(node, affected);
+			}
+		}
+
+		private void addWithNeighbors(Node node, PrimitiveLongSet affected) {
+			affected.add(node.getId());
+			for (Relationship r : node.getRelationships(type)) {
+				affected.add(r.getOtherNodeId(node.getId()));
+			}
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, PrimitiveLongSet state) {
+			invalidate(state);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.caleydo.neo4j.plugins.kshortestpaths.constraints;
+
+import java.util.Arrays;
+
+import org.caleydo.neo4j.plugins.kshortestpaths.GraphTokens;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * maps the label (node context) or relationship type (relationship context) names referenced by a constraint to bit
+ * positions, such that label tests become bitwise tests on a single long
+ *
+ * @author sam
+ *
+ */
+public class LabelMask {
+	/**
+	 * marker for a name that doesn't exist as a token, i.e. no element can have it
+	 */
+	public static final int MISSING = -1;
+	/**
+	 * marker for too many referenced names
+	 */
+	public static final int OVERFLOW = -2;
+
+	private final GraphTokens tokens;
+	private final boolean nodeContext;
+	private int[] ids = new int[0];
+
+	public LabelMask(GraphTokens tokens, boolean nodeContext) {
+		this.tokens = tokens;
+		this.nodeContext = nodeContext;
+	}
+
+	/**
+	 * @return the bit of the given label / type name or {@link #MISSING} / {@link #OVERFLOW}
+	 */
+	public int bit(String name) {
+		int id = nodeContext ? tokens.labelId(name) : tokens.relationshipTypeId(name);
+		if (id < 0) {
+			return MISSING;
+		}
+		for (int i = 0; i < ids.length; ++i) {
+			if (ids[i] == id) {
+				return i;
+			}
+		}
+		if (ids.length >= GraphTokens.MAX_BITS) {
+			return OVERFLOW;
+		}
+		ids = Arrays.copyOf(ids, ids.length + 1);
+		ids[ids.length - 1] = id;
+		return ids.length - 1;
+	}
+
+	public long of(PropertyContainer container) {
+		if (nodeContext) {
+			return tokens.labelMask((Node) container, ids);
+		}
+		return tokens.typeMask((Relationship) container, ids);
+	}
+
+	public interface IMatcher {
+		boolean test(long mask);
+	}
+}
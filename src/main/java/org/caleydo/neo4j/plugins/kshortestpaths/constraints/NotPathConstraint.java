@@ -1,6 +1,7 @@
 package org.caleydo.neo4j.plugins.kshortestpaths.constraints;
 
 import java.util.BitSet;
+import java.util.Map;
 import java.util.SortedSet;
 
 import org.neo4j.graphdb.Node;
@@ -43,10 +44,10 @@ public class NotPathConstraint implements ICompositePathContraint, IConstraint {
 	
 	
 	@Override
-	public void toCypher(StringBuilder b, String var) {
+	public void toCypher(StringBuilder b, String var, Map<String, Object> params) {
 		if (constraint instanceof IConstraint) {
 			b.append(" not (");
-			((IConstraint) constraint).toCypher(b, var);
+			((IConstraint) constraint).toCypher(b, var, params);
 			b.append(") ");
 		}
 	}
@@ -9,6 +9,7 @@ import java.util.Objects;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import org.caleydo.neo4j.plugins.kshortestpaths.GraphTokens;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
@@ -39,6 +40,17 @@ public class PathConstraints {
 		return parseElem(obj);
 	}
 
+	/**
+	 * binds all element constraints to the given tokens, i.e. resolves the referenced names once per query plan
+	 */
+	public static void bind(IPathConstraint p, GraphTokens tokens) {
+		for (IPathConstraint c : flatten(p)) {
+			if (c instanceof ElemConstraint) {
+				((ElemConstraint) c).bind(tokens);
+			}
+		}
+	}
+
 	public static IPathConstraint and(Collection<IPathConstraint> c) {
 		return new CompositePathConstraint(true, c);
 	}
@@ -120,13 +132,20 @@ public class PathConstraints {
 
 	private static final TrueConstraint TRUE = new TrueConstraint();
 
+	/**
+	 * @return whether the given constraint accepts everything
+	 */
+	public static boolean isTrue(IConstraint c) {
+		return c == null || c == TRUE;
+	}
+
 	static class TrueConstraint implements IConstraint {
 		@Override
 		public boolean accept(Node node, Relationship rel) {
 			return true;
 		}
 		@Override
-		public void toCypher(StringBuilder b, String var) {
+		public void toCypher(StringBuilder b, String var, Map<String, Object> params) {
 			// b.append("1=1");
 		}
 		@Override
@@ -223,6 +242,24 @@ public class PathConstraints {
 		return TRUE;
 	}
 
+	public static IConstraint getPerRelConstraint(IPathConstraint p) {
+		if (p instanceof ElemConstraint && !((ElemConstraint) p).isNodeContext()) {
+			return (IConstraint) p;
+		}
+		if (p instanceof CompositePathConstraint && ((CompositePathConstraint) p).isAnd) {
+			List<IConstraint> r = new ArrayList<IConstraint>();
+			for (IPathConstraint pi : ((CompositePathConstraint) p).children()) {
+				IConstraint ri = getPerRelConstraint(pi);
+				if (ri != null && ri != TRUE) {
+					r.add(ri);
+				}
+			}
+			IConstraint c = combine(r, true);
+			return c == null ? TRUE : c;
+		}
+		return TRUE;
+	}
+
 	//just and and direct elem constraints
 	public static IConstraint getPerElemConstraint(IPathConstraint p) {
 		if (p instanceof ElemConstraint) {
@@ -249,6 +286,35 @@ public class PathConstraints {
 		return new CompositePathConstraint(and, start);
 	}
 
+	public static List<Pair<String, Object>> findAndPropertyEqualities(IConstraint c) {
+		List<Pair<String, Object>> r = new ArrayList<Pair<String, Object>>();
+		if (c instanceof CompositePathConstraint && ((CompositePathConstraint) c).isAnd) {
+			for(IPathConstraint p : ((CompositePathConstraint) c).children()) {
+				r.addAll(findAndPropertyEqualities((IConstraint)p));
+			}
+		} else if (c instanceof ElemConstraint) {
+			Pair<String, Object> l = ((ElemConstraint) c).getPropertyEquality();
+			if (l != null) {
+				r.add(l);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * @return the number of terms of the given constraint when seen as a conjunction
+	 */
+	public static int countAndTerms(IConstraint c) {
+		if (c instanceof CompositePathConstraint && ((CompositePathConstraint) c).isAnd) {
+			int r = 0;
+			for(IPathConstraint p : ((CompositePathConstraint) c).children()) {
+				r += countAndTerms((IConstraint)p);
+			}
+			return r;
+		}
+		return 1;
+	}
+
 	public static List<String> findAndLabels(IConstraint c) {
 		List<String> r = new ArrayList<String>();
 		if (c instanceof CompositePathConstraint && ((CompositePathConstraint) c).isAnd) {
@@ -11,6 +11,10 @@ public class PropertySelector implements ISelector{
 		this.property = property;
 	}
 
+	public String getProperty() {
+		return property;
+	}
+
 	@Override
 	public Object get(PropertyContainer container) {
 		return container.hasProperty(property) ? container.getProperty(property) : null;
@@ -23,6 +27,6 @@ public class PropertySelector implements ISelector{
 
 	@Override
 	public String toCypher(String var, boolean isNode) {
-		return var+"."+property;
+		return var+".`"+property+'`';
 	}
 }
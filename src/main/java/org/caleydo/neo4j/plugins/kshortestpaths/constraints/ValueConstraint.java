@@ -97,6 +97,10 @@ public abstract class ValueConstraint implements Predicate<Object>{
 		public EqualPredicate(Object value) {
 			this.eq = value;
 		}
+
+		public Object getEq() {
+			return eq;
+		}
 		
 		@Override
 		protected boolean acceptImpl(Object value) {
@@ -116,8 +120,29 @@ public abstract class ValueConstraint implements Predicate<Object>{
 		}
 		
 		@Override
-		public void toCypher(String property, StringBuilder b) {
-			b.append(property).append(" = ").append(escaped(eq)).append(' ');
+		public void toCypher(String property, StringBuilder b, Map<String, Object> params) {
+			b.append(property).append(" = ").append(param(eq, params)).append(' ');
+		}
+
+		@Override
+		public LabelMask.IMatcher toMatcher(LabelMask mask) {
+			if (!(eq instanceof String)) {
+				return null;
+			}
+			final int bit = mask.bit((String) eq);
+			if (bit == LabelMask.OVERFLOW) {
+				return null;
+			}
+			if (bit == LabelMask.MISSING) {
+				return FALSE;
+			}
+			final long expected = 1L << bit;
+			return new LabelMask.IMatcher() {
+				@Override
+				public boolean test(long m) {
+					return m == expected; // exactly this single one
+				}
+			};
 		}
 		
 	}
@@ -149,7 +174,7 @@ public abstract class ValueConstraint implements Predicate<Object>{
 		}
 		
 		@Override
-		public void toCypher(String property, StringBuilder b) {
+		public void toCypher(String property, StringBuilder b, Map<String, Object> params) {
 			b.append("(");
 			String in = isAnd ? " and " : " or ";
 			boolean first = true;
@@ -158,10 +183,32 @@ public abstract class ValueConstraint implements Predicate<Object>{
 					b.append(in);
 				}
 				first = false;
-				c.toCypher(property, b);
+				c.toCypher(property, b, params);
 			}
 			b.append(") ");
 		}
+
+		@Override
+		public LabelMask.IMatcher toMatcher(LabelMask mask) {
+			final LabelMask.IMatcher[] ms = new LabelMask.IMatcher[cs.size()];
+			for (int i = 0; i < ms.length; ++i) {
+				ms[i] = cs.get(i).toMatcher(mask);
+				if (ms[i] == null) {
+					return null;
+				}
+			}
+			return new LabelMask.IMatcher() {
+				@Override
+				public boolean test(long m) {
+					for (LabelMask.IMatcher mi : ms) {
+						if (isAnd != mi.test(m)) {
+							return !isAnd;
+						}
+					}
+					return isAnd;
+				}
+			};
+		}
 		
 	}
 	
@@ -185,8 +232,24 @@ public abstract class ValueConstraint implements Predicate<Object>{
 		}
 		
 		@Override
-		public void toCypher(String property, StringBuilder b) {
-			b.append("NOT (").append(cs).append(") ");
+		public void toCypher(String property, StringBuilder b, Map<String, Object> params) {
+			b.append("NOT (");
+			cs.toCypher(property, b, params);
+			b.append(") ");
+		}
+
+		@Override
+		public LabelMask.IMatcher toMatcher(LabelMask mask) {
+			final LabelMask.IMatcher m = cs.toMatcher(mask);
+			if (m == null) {
+				return null;
+			}
+			return new LabelMask.IMatcher() {
+				@Override
+				public boolean test(long mi) {
+					return !m.test(mi);
+				}
+			};
 		}
 		
 	}
@@ -225,18 +288,59 @@ public abstract class ValueConstraint implements Predicate<Object>{
 		}
 		
 		@Override
-		public void toCypher(String property, StringBuilder b) {
-			b.append(escaped(in)).append(" in ").append(property).append(' ');
+		public void toCypher(String property, StringBuilder b, Map<String, Object> params) {
+			b.append(param(in, params)).append(" in ").append(property).append(' ');
+		}
+
+		@Override
+		public LabelMask.IMatcher toMatcher(LabelMask mask) {
+			if (!(in instanceof String)) {
+				return null;
+			}
+			final int bit = mask.bit((String) in);
+			if (bit == LabelMask.OVERFLOW) {
+				return null;
+			}
+			if (bit == LabelMask.MISSING) {
+				return FALSE;
+			}
+			final long expected = 1L << bit;
+			return new LabelMask.IMatcher() {
+				@Override
+				public boolean test(long m) {
+					return (m & expected) != 0;
+				}
+			};
 		}
 	}
 	
-	public abstract void toCypher(String property, StringBuilder b);
-	
-	public String escaped(Object in) {
-		if (in instanceof String) {
-			return "\""+in+"\"";
+	public abstract void toCypher(String property, StringBuilder b, Map<String, Object> params);
+
+	private static final LabelMask.IMatcher FALSE = new LabelMask.IMatcher() {
+		@Override
+		public boolean test(long mask) {
+			return false;
 		}
-		return in.toString();
+	};
+
+	/**
+	 * compiles this constraint to a bitwise test on label / type masks
+	 *
+	 * @return the matcher or null if this constraint can't be expressed as one
+	 */
+	public LabelMask.IMatcher toMatcher(LabelMask mask) {
+		return null;
+	}
+	
+	/**
+	 * adds the given value as the next parameter
+	 *
+	 * @return its placeholder
+	 */
+	protected static String param(Object in, Map<String, Object> params) {
+		String name = "p" + params.size();
+		params.put(name, in);
+		return "$" + name;
 	}
 
 	public abstract void toString(StringBuilder b);
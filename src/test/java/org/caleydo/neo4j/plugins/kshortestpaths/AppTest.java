@@ -6,6 +6,12 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import org.apache.commons.io.FileUtils;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.DirectionContraints;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.IConstraint;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.InlineRelationships;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.InlineView;
+import org.caleydo.neo4j.plugins.kshortestpaths.constraints.PathConstraints;
+import org.neo4j.graphalgo.CostEvaluator;
 import org.neo4j.graphalgo.WeightedPath;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
@@ -16,6 +22,7 @@ import org.neo4j.helpers.collection.Pair;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -268,6 +275,747 @@ public class AppTest extends TestCase {
 		};
 	}
 
+	public void testLabelConstraint() {
+		try (Transaction tx = graphDb.beginTx()) {
+			_1.addLabel(Label.label("Gene"));
+			FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+			CustomPathExpander expander = KShortestPaths.toExpander("{'c': {'context': 'node', '$contains': 'Gene'}}".replace('\'', '"'), db, Collections.<FakeNode>emptyList());
+			IConstraint c = PathConstraints.getPerElemConstraint(expander.getConstraints());
+			assertTrue(c.accept(_1, null));
+			assertFalse(c.accept(_2, null));
+
+			expander = KShortestPaths.toExpander("{'c': {'context': 'node', '$eq': 'NetworkNode'}}".replace('\'', '"'), db, Collections.<FakeNode>emptyList());
+			c = PathConstraints.getPerElemConstraint(expander.getConstraints());
+			assertFalse(c.accept(_1, null));
+			assertTrue(c.accept(_2, null));
+
+			expander = KShortestPaths.toExpander("{'c': {'context': 'rel', '$not': {'$eq': 'to'}}}".replace('\'', '"'), db, Collections.<FakeNode>emptyList());
+			c = PathConstraints.getPerElemConstraint(expander.getConstraints());
+			assertFalse(c.accept(null, Iterables.first(_1.getRelationships())));
+			tx.failure();
+		}
+	}
+
+	public void testLegacyConstraints() throws Exception {
+		try (Transaction tx = graphDb.beginTx()) {
+			for (Node n : Arrays.asList(_1, _2, _4)) {
+				n.addLabel(Label.label("concept"));
+			}
+			tx.success();
+		}
+		// no transaction open, the endpoint binds the constraints within its own
+		List<?> paths = legacy("1", "4", null, "{'c': {'context': 'node', '$contains': 'concept'}}");
+		assertFalse(paths.isEmpty());
+		for (Object path : paths) {
+			for (Object node : (List<?>) ((Map<?, ?>) path).get("nodes")) {
+				assertFalse(((Number) ((Map<?, ?>) node).get("id")).longValue() == _3.getId());
+			}
+		}
+
+		paths = legacy("1", "4", null, "{'dir': {'to': 'out'}}");
+		assertFalse(paths.isEmpty());
+		for (Object path : paths) {
+			long prev = _1.getId();
+			for (Object edge : (List<?>) ((Map<?, ?>) path).get("edges")) {
+				assertEquals(prev, ((Number) ((Map<?, ?>) edge).get("sourceNodeId")).longValue());
+				prev = ((Number) ((Map<?, ?>) edge).get("targetNodeId")).longValue();
+			}
+		}
+
+		DirectionContraints d = new DirectionContraints(Collections.singletonMap("to", "out"));
+		d.bind(new FakeGraphDatabase(graphDb).tokens()); // outside of a transaction
+		assertFalse(d.isBound());
+	}
+
+	public void testLegacyCostProfile() throws Exception {
+		Relationship direct;
+		try (Transaction tx = graphDb.beginTx()) {
+			for (Node n : Arrays.asList(_1, _2, _3, _4)) {
+				n.addLabel(Label.label("concept"));
+			}
+			direct = _4.getRelationships(Direction.OUTGOING).iterator().next();
+			direct.setProperty("slow", true);
+			tx.success();
+		}
+		List<?> paths = legacy("1", "4", null, null);
+		assertEquals(2, ((List<?>) ((Map<?, ?>) paths.get(0)).get("nodes")).size());
+		paths = legacy("1", "4", "{'slow': 10}", null);
+		assertEquals(3, ((List<?>) ((Map<?, ?>) paths.get(0)).get("nodes")).size());
+		// the cost function ranks the paths as well
+		for (String costFunction : Arrays.asList("expr: has(slow) ? 10 : 1", "profile:{'propertyCosts': {'slow': 10}}")) {
+			paths = legacy("1", "4", costFunction.replace('\'', '"'), null, null);
+			assertEquals(costFunction, 3, ((List<?>) ((Map<?, ?>) paths.get(0)).get("nodes")).size());
+		}
+
+		try (Transaction tx = graphDb.beginTx()) {
+			direct.removeProperty("slow"); // invalidates the cached result
+			tx.success();
+		}
+		paths = legacy("1", "4", "{'slow': 10}", null);
+		assertEquals(2, ((List<?>) ((Map<?, ?>) paths.get(0)).get("nodes")).size());
+	}
+
+	/**
+	 * runs the legacy endpoint and parses its result
+	 */
+	private List<?> legacy(String source, String target, String propertyCosts, String constraints) throws Exception {
+		return legacy(source, target, null, propertyCosts, constraints);
+	}
+
+	private List<?> legacy(String source, String target, String costFunction, String propertyCosts, String constraints)
+			throws Exception {
+		org.neo4j.server.rest.repr.Representation r = new KShortestPaths().kShortestPaths(graphDb, source, target, 10,
+				null, costFunction, null, propertyCosts == null ? null : propertyCosts.replace('\'', '"'),
+				constraints == null ? null : constraints.replace('\'', '"'));
+		java.lang.reflect.Field value = r.getClass().getDeclaredField("value");
+		value.setAccessible(true);
+		return new Gson().fromJson((String) value.get(r), List.class);
+	}
+
+	public void testCostExpression() {
+		try (Transaction tx = graphDb.beginTx()) {
+			Relationship r = Iterables.first(_1.getRelationships(Direction.OUTGOING));
+			r.setProperty("score", 0.25);
+			EdgePropertyCostEvaluator cost = new EdgePropertyCostEvaluator("expr: 1 + (type == 'to' ? 0 : 2) + max(0, 1 - score) * 2 + (has(missing) ? 10 : 0)");
+			assertEquals(2.5, cost.getCost(r, Direction.OUTGOING), 1e-9);
+			assertEquals(3.0, CostExpression.compile("prop('weight', 3)").cost(r), 1e-9);
+
+			r.setProperty("size", "big");
+			CostEvaluator<Double> profile = EdgePropertyCostEvaluator.of("profile:{'baseCost': 2, 'propertyCosts': {'size': {'big': 3, 'small': 1}, 'score': 0.5, 'missing': 7}}".replace('\'', '"'), new FakeGraphDatabase(graphDb));
+			assertEquals(5.5, profile.getCost(r, Direction.OUTGOING), 1e-9);
+
+			String script = "function getCost(properties) { return 1.0 + properties.length; }";
+			for (int i = 0; i < 2; ++i) {
+				EdgePropertyCostEvaluator js = new EdgePropertyCostEvaluator(script);
+				assertEquals(3.0, js.getCost(r, Direction.OUTGOING), 1e-9);
+				js.close();
+			}
+
+			String batch = "function getCost(properties) { return 100.0; } function getCosts(ps) { return Java.to(Java.from(ps).map(function(p) { return 1.0 + p.length; }), 'double[]'); }";
+			EdgePropertyCostEvaluator js = new EdgePropertyCostEvaluator(batch);
+			List<Relationship> rels = Iterables.asList(_1.getRelationships());
+			js.prefetch(rels);
+			for (Relationship ri : rels) {
+				assertEquals(1.0 + Iterables.count(ri.getPropertyKeys()), js.getCost(ri, Direction.OUTGOING), 1e-9);
+			}
+			js.close();
+			tx.failure();
+		}
+	}
+
+	public void testEdgeCostCache() {
+		EdgeCostCache cache = new EdgeCostCache(64 * 1024);
+		int a = EdgeCostCache.profileId("a");
+		int b = EdgeCostCache.profileId("b");
+		for (long i = 0; i < 100000; ++i) {
+			cache.put(a, i, i);
+			cache.put(b, i, -i);
+		}
+		assertTrue(cache.size() < 200000);
+		cache.put(a, 5, 5);
+		cache.put(b, 5, -5);
+		assertEquals(5.0, cache.get(a, 5));
+		assertEquals(-5.0, cache.get(b, 5));
+		cache.invalidate(5);
+		assertTrue(Double.isNaN(cache.get(a, 5)));
+		assertTrue(Double.isNaN(cache.get(b, 5)));
+		long version = cache.version(5);
+		cache.invalidate(5); // a commit while computing the cost
+		cache.put(a, 5, 5, version);
+		assertTrue(Double.isNaN(cache.get(a, 5)));
+		cache.put(a, 5, 5, cache.version(5));
+		assertEquals(5.0, cache.get(a, 5));
+
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+		EdgeCostCache shared = EdgeCostCache.of(db);
+		long id;
+		try (Transaction tx = graphDb.beginTx()) {
+			id = Iterables.first(_1.getRelationships(Direction.OUTGOING)).getId();
+			shared.put(a, id, 3);
+			tx.success();
+		}
+		assertEquals(3.0, shared.get(a, id));
+		try (Transaction tx = graphDb.beginTx()) {
+			graphDb.getRelationshipById(id).setProperty("weight", 2);
+			tx.success();
+		}
+		assertTrue(Double.isNaN(shared.get(a, id)));
+	}
+
+	public void testEdgeWeightColumn() {
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+		long id;
+		try (Transaction tx = graphDb.beginTx()) {
+			Relationship r = Iterables.first(_1.getRelationships(Direction.OUTGOING));
+			id = r.getId();
+			CostEvaluator<Double> column = EdgePropertyCostEvaluator.of("column:expr: 1 + prop('weight', 0)", db);
+			assertEquals(1.0, column.getCost(r, Direction.OUTGOING), 1e-9);
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			graphDb.getRelationshipById(id).setProperty("weight", 2);
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			CostEvaluator<Double> column = EdgePropertyCostEvaluator.of("column:expr: 1 + prop('weight', 0)", db);
+			assertEquals(3.0, column.getCost(graphDb.getRelationshipById(id), Direction.OUTGOING), 1e-9);
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			// every distinct spec is a column, just the recently used ones are kept
+			for (int i = 0; i < 20; ++i) {
+				CostEvaluator<Double> column = EdgePropertyCostEvaluator.of("column:expr: " + i + " + prop('weight', 0)", db);
+				assertEquals(i + 2.0, column.getCost(graphDb.getRelationshipById(id), Direction.OUTGOING), 1e-9);
+			}
+			assertTrue(EdgeWeightColumn.size(graphDb) <= 8);
+			tx.success();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testInlineView() {
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+		Map<String, Object> desc = new Gson().fromJson("{'flag': 'isSet', 'toaggregate': 'name', 'aggregate': { 'sets': 'sets' }, 'inline': 'consistsOf', 'type': 'to'}", Map.class);
+		Node set;
+		try (Transaction tx = graphDb.beginTx()) {
+			set = graphDb.createNode(Label.label("sets"));
+			set.setProperty("name", "S");
+			for (Node n : new Node[] { _1, _5, _6 }) {
+				set.createRelationshipTo(n, consistsOf);
+			}
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			InlineRelationships view = InlineRelationships.of(desc, db);
+			InlineRelationships plain = InlineRelationships.of(desc, new FakeGraphDatabase(graphDb));
+			plain.setView(null);
+			List<Relationship> rels = Iterables.asList(_1.getRelationships());
+			assertEquals(Iterables.count(plain.inline(rels, _1)), Iterables.count(view.inline(rels, _1)));
+			assertEquals(6, Iterables.count(view.inline(rels, _1))); // 4 direct + 5 + 6
+			for (Relationship r : view.inline(rels, _1)) {
+				if (r.hasProperty("isSet")) {
+					assertEquals("S", ((String[]) r.getProperty("sets"))[0]);
+				}
+			}
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			set.createRelationshipTo(_7, consistsOf);
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			InlineRelationships view = InlineRelationships.of(desc, new FakeGraphDatabase(graphDb));
+			assertEquals(7, Iterables.count(view.inline(Iterables.asList(_1.getRelationships()), _1)));
+			tx.success();
+		}
+		InlineView shared = InlineView.of(graphDb, consistsOf,
+				(Map<String, String>) desc.get("aggregate"), "name");
+		InlineView.Adjacency cached;
+		try (Transaction tx = graphDb.beginTx()) {
+			cached = shared.adjacency(_5);
+			_0.createRelationshipTo(_6, to);
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			Iterables.first(_0.getRelationships()).delete(); // unrelated type
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			assertSame(cached, shared.adjacency(_5));
+			Iterables.first(set.getRelationships(consistsOf)).delete();
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			assertNotSame(cached, shared.adjacency(_5));
+			tx.success();
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			// computed from uncommitted changes, not shared
+			set.createRelationshipTo(_5, consistsOf);
+			cached = shared.adjacency(_6);
+			assertNotSame(cached, shared.adjacency(_6));
+			tx.failure();
+		}
+
+		for (int i = 0; i < 20; ++i) {
+			InlineView.of(graphDb, consistsOf, (Map<String, String>) desc.get("aggregate"), "name" + i);
+		}
+		assertTrue(InlineView.size(graphDb) <= 8);
+	}
+
+	public void testTrace() {
+		Trace.OFF.log("ignored", 1);
+		assertTrue(Trace.OFF.getEntries().isEmpty());
+		Trace trace = new Trace(3);
+		for (int i = 0; i < 5; ++i) {
+			trace.log("entry", i);
+		}
+		assertEquals(java.util.Arrays.asList("entry 2", "entry 3", "entry 4"), trace.getEntries());
+		assertEquals(2, trace.getDropped());
+	}
+
+	public void testKernelTraversal() {
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+		try (Transaction tx = graphDb.beginTx()) {
+			Map<String, String> dir = Collections.singletonMap("to", "out");
+			CustomPathExpander kernel = KShortestPaths.toExpander("{'dir': {'to': 'out'}}".replace('\'', '"'), db, Collections.<FakeNode>emptyList());
+			CustomPathExpander embedded = new CustomPathExpander(new DirectionContraints(dir), PathConstraints.parse(null), null, Collections.<FakeNode>emptyList(), false);
+			for (Node n : new Node[] { _1, _2, _3, _4 }) {
+				Path p = org.neo4j.graphalgo.impl.util.PathImpl.singular(n);
+				List<Long> a = new ArrayList<>();
+				for (Relationship r : kernel.expand(p, null)) {
+					a.add(r.getId());
+					assertEquals(n, r.getStartNode());
+				}
+				List<Long> b = new ArrayList<>();
+				for (Relationship r : embedded.expand(p, null)) {
+					b.add(r.getId());
+				}
+				Collections.sort(a);
+				Collections.sort(b);
+				assertEquals(b, a);
+			}
+		}
+	}
+
+	public void testFakeNode() {
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+		try (Transaction tx = graphDb.beginTx()) {
+			FakeNode source = new FakeNode(FakeGraphDatabase.virtualNodeId(0), db, Direction.OUTGOING, Iterables.iterable(_1, _2).iterator());
+			assertEquals(2, source.getDegree());
+			assertTrue(source.hasRelationship(_1));
+			assertFalse(source.hasRelationship(_3));
+			assertNull(source.getRelationship(_3));
+			Relationship r = source.getRelationship(_2);
+			assertEquals(source, r.getStartNode());
+			assertEquals(_2, r.getEndNode());
+			assertSame(r, source.getRelationship(_2));
+			assertTrue(db.hasFake(r.getId()));
+			assertTrue(FakeGraphDatabase.isVirtual(r.getId()));
+			assertSame(r, db.getRelationshipById(r.getId()));
+			assertFalse(db.hasFake(_2.getId()));
+			assertFalse(FakeRelationship.id(db, _1, _2) == FakeRelationship.id(db, source, _2));
+			// ids that agree in their low bits don't collide
+			assertFalse(db.virtualRelationshipId(1, 2) == db.virtualRelationshipId(1 + (1L << 30), 2 + (1L << 30)));
+			assertEquals(db.virtualRelationshipId(1, 2), db.virtualRelationshipId(1, 2));
+			assertFalse(db.hasFake(db.virtualRelationshipId(3, 4)));
+			List<Long> ends = new ArrayList<>();
+			for (Relationship rel : source.getRelationships()) {
+				ends.add(rel.getEndNode().getId());
+			}
+			assertEquals(2, ends.size());
+			assertTrue(ends.contains(_1.getId()) && ends.contains(_2.getId()));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static IConstraint parseConstraint(String desc) {
+		return (IConstraint) PathConstraints.parse(new Gson().fromJson(desc.replace('\'', '"'), Map.class));
+	}
+
+	public void testResolveNodes() {
+		FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+		try (Transaction tx = graphDb.beginTx()) {
+			IConstraint eq = parseConstraint("{'$and': [{'context': 'node', '$contains': 'NetworkNode'}, {'context': 'node', 'prop': 'name', '$eq': '2'}]}");
+			FakeNode source = KShortestPathsAsync.resolveNode(null, eq, Direction.OUTGOING, db);
+			assertEquals(1, source.getDegree());
+			assertTrue(source.hasRelationship(_2));
+
+			IConstraint or = parseConstraint("{'$and': [{'context': 'node', '$contains': 'NetworkNode'}, {'context': 'node', 'prop': 'name', '$or': [{'$eq': '1'}, {'$eq': '3'}]}]}");
+			Map<String, Object> params = new java.util.HashMap<>();
+			StringBuilder b = new StringBuilder();
+			or.toCypher(b, "n", params);
+			assertFalse(b.toString().contains("\"1\""));
+			assertEquals(3, params.size()); // label and both names
+			FakeNode target = KShortestPathsAsync.resolveNode(null, or, Direction.INCOMING, db);
+			assertEquals(2, target.getDegree());
+			assertTrue(target.hasRelationship(_1) && target.hasRelationship(_3));
+		}
+	}
+
+	public void testNodeNameDictionary() throws InterruptedException {
+		Node a, b, c, d;
+		try (Transaction tx = graphDb.beginTx()) {
+			a = graphDb.createNode(Label.label("concept"));
+			a.setProperty("name", "C0000052");
+			b = graphDb.createNode(Label.label("concept"));
+			b.setProperty("name", "C0000176");
+			tx.success();
+		}
+		NodeNameDictionary dict = NodeNameDictionary.of(graphDb, "concept", "name");
+		assertNull(NodeNameDictionary.of(graphDb, "NetworkNode", "name")); // not configured
+		for (int i = 0; i < 100 && !dict.isReady(); ++i) {
+			Thread.sleep(50);
+		}
+		assertTrue(dict.isReady());
+		assertEquals(a.getId(), dict.get("C0000052"));
+		assertEquals(NodeNameDictionary.MISSING, dict.get("C0000000"));
+
+		try (Transaction tx = graphDb.beginTx()) {
+			a.setProperty("name", "C0000000");
+			b.removeLabel(Label.label("concept"));
+			c = graphDb.createNode(Label.label("concept"));
+			c.setProperty("name", "C0000052");
+			d = graphDb.createNode(Label.label("concept"));
+			d.setProperty("name", "C0000052");
+			tx.success();
+		}
+		assertEquals(a.getId(), dict.get("C0000000"));
+		assertEquals(NodeNameDictionary.MISSING, dict.get("C0000176"));
+		assertEquals(NodeNameDictionary.UNKNOWN, dict.get("C0000052")); // ambiguous
+		try (Transaction tx = graphDb.beginTx()) {
+			FakeGraphDatabase db = new FakeGraphDatabase(graphDb);
+			assertEquals(a, NodeNameDictionary.findNode(db, Label.label("concept"), "name", "C0000000"));
+			assertNull(NodeNameDictionary.findNode(db, Label.label("concept"), "name", "C0000176"));
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			d.delete();
+			tx.success();
+		}
+		assertEquals(c.getId(), dict.get("C0000052")); // unique again
+		try (Transaction tx = graphDb.beginTx()) {
+			c.setProperty("name", "C0000001");
+			c.removeLabel(Label.label("concept"));
+			tx.success();
+		}
+		assertEquals(NodeNameDictionary.MISSING, dict.get("C0000052")); // the committed name is removed
+		assertEquals(NodeNameDictionary.MISSING, dict.get("C0000001"));
+
+		List<Node> many = new ArrayList<>();
+		try (Transaction tx = graphDb.beginTx()) {
+			for (int i = 0; i < 600; ++i) {
+				Node n = graphDb.createNode(Label.label("concept"));
+				n.setProperty("name", "X" + i);
+				many.add(n);
+			}
+			tx.success();
+		}
+		int records = dict.records();
+		assertTrue(records >= 600);
+		try (Transaction tx = graphDb.beginTx()) {
+			for (Node n : many.subList(1, many.size())) {
+				n.delete();
+			}
+			tx.success();
+		}
+		assertTrue(dict.records() < records - 256); // reclaimed
+		assertEquals(many.get(0).getId(), dict.get("X0"));
+		assertEquals(a.getId(), dict.get("C0000000"));
+		assertEquals(NodeNameDictionary.MISSING, dict.get("X1"));
+		try (Transaction tx = graphDb.beginTx()) {
+			a.delete();
+			// not yet committed, the lookup has to see the own changes
+			assertNull(NodeNameDictionary.findNode(new FakeGraphDatabase(graphDb), Label.label("concept"), "name", "C0000000"));
+			tx.failure();
+		}
+	}
+
+	public void testPathResultCache() throws IOException {
+		PathResultCache cache = PathResultCache.of(graphDb);
+		CompactPaths paths = new CompactPaths();
+		Path path;
+		try (Transaction tx = graphDb.beginTx()) {
+			Relationship r = _1.getRelationships(Direction.OUTGOING).iterator().next();
+			path = new MyPath(Arrays.asList(_1, r.getEndNode()), Arrays.asList(r));
+			paths.add(path);
+			java.io.StringWriter out = new java.io.StringWriter();
+			com.google.gson.stream.JsonWriter writer = new com.google.gson.stream.JsonWriter(out);
+			paths.writeTo(writer, 0);
+			writer.flush();
+			Gson gson = new Gson();
+			assertEquals(gson.fromJson(gson.toJson(getPathAsMap(path)), Map.class), gson.fromJson(out.toString(), Map.class));
+			CompactPaths restored = new CompactPaths(paths.getData(), paths.getTypes());
+			assertEquals(1, restored.size());
+		}
+
+		PathResultCache.Dependencies deps = PathResultCache.Dependencies.of("{'dir': {'to': 'out'}, 'c': {'context': 'node', 'prop': 'name', '$eq': '1'}}".replace('\'', '"'), null);
+		String key = PathResultCache.key("test", 1, 2);
+		cache.put(key, paths, deps, cache.getVersion());
+		assertSame(paths, cache.get(key));
+		try (Transaction tx = graphDb.beginTx()) {
+			_1.setProperty("other", 1);
+			_1.createRelationshipTo(_2, RelationshipType.withName("unrelated"));
+			tx.success();
+		}
+		assertSame(paths, cache.get(key));
+		long version = cache.getVersion();
+		try (Transaction tx = graphDb.beginTx()) {
+			_3.setProperty("name", "x");
+			tx.success();
+		}
+		assertNull(cache.get(key));
+		cache.put(key, paths, deps, version); // computed before the last commit
+		assertNull(cache.get(key));
+
+		// $contains just depends on the named label, $eq on the exact label set
+		PathResultCache.Dependencies contains = PathResultCache.Dependencies.of("{'c': {'context': 'node', '$contains': 'NetworkNode'}}".replace('\'', '"'), null);
+		PathResultCache.Dependencies eq = PathResultCache.Dependencies.of("{'c': {'context': 'node', '$eq': 'NetworkNode'}}".replace('\'', '"'), null);
+		String containsKey = PathResultCache.key("test", "contains");
+		String eqKey = PathResultCache.key("test", "eq");
+		cache.put(containsKey, paths, contains, cache.getVersion());
+		cache.put(eqKey, paths, eq, cache.getVersion());
+		try (Transaction tx = graphDb.beginTx()) {
+			_1.addLabel(Label.label("Other")); // on the cached path
+			tx.success();
+		}
+		assertSame(paths, cache.get(containsKey));
+		assertNull(cache.get(eqKey));
+	}
+
+	public void testPathJsonWriter() throws IOException {
+		try (Transaction tx = graphDb.beginTx()) {
+			Relationship r = _1.getRelationships(Direction.OUTGOING).iterator().next();
+			Path path = new MyPath(Arrays.asList(_1, r.getEndNode()), Arrays.asList(r));
+			java.io.StringWriter out = new java.io.StringWriter();
+			com.google.gson.stream.JsonWriter writer = new com.google.gson.stream.JsonWriter(out);
+			writer.beginArray();
+			PathJsonWriter.write(writer, path);
+			PathJsonWriter.writeNeighbor(writer, r.getEndNode(), r);
+			writer.endArray();
+			writer.flush();
+			Gson gson = new Gson();
+			List<?> written = gson.fromJson(out.toString(), List.class);
+			assertEquals(gson.fromJson(gson.toJson(getPathAsMap(path)), Map.class), written.get(0));
+			Map<String, Object> neighbor = KShortestPaths.getNodeAsMap(r.getEndNode());
+			neighbor.put("_edge", KShortestPaths.getRelationshipAsMap(r));
+			assertEquals(gson.fromJson(gson.toJson(neighbor), Map.class), written.get(1));
+		}
+	}
+
+	public void testPathCacheStore() throws IOException {
+		File dir = java.nio.file.Files.createTempDirectory("kshortestpaths").toFile();
+		final long[] tx = { 42 };
+		long[] stamp = { 1, 2, 3 };
+		CompactPaths paths = new CompactPaths();
+		try (Transaction t = graphDb.beginTx()) {
+			Relationship r = _1.getRelationships(Direction.OUTGOING).iterator().next();
+			paths.add(new MyPath(Arrays.asList(_1, r.getEndNode()), Arrays.asList(r)));
+		}
+		PathResultCache.Dependencies deps = PathResultCache.Dependencies.of("{'dir': {'to': 'out'}}".replace('\'', '"'), null);
+		try {
+			PathCacheStore store = new PathCacheStore(dir, stamp, () -> tx[0]);
+			store.put("a", paths, deps);
+			store.put("b", paths, deps);
+			store.close();
+
+			store = new PathCacheStore(dir, stamp, () -> tx[0]);
+			PathResultCache.Entry e = store.get("a");
+			assertNotNull(e);
+			assertEquals(Arrays.toString(paths.getData()), Arrays.toString(e.paths.getData()));
+			assertEquals(paths.getTypes(), e.paths.getTypes());
+			assertNull(store.get("c"));
+			PathResultCache.Dependencies changed = PathResultCache.Dependencies.of("{'dir': {'to': 'out'}}".replace('\'', '"'), null);
+			store.invalidate(changed);
+			assertNull(store.get("a"));
+			store.put("a", paths, deps);
+			store.close();
+
+			tx[0]++;
+			store = new PathCacheStore(dir, stamp, () -> tx[0]);
+			assertNull(store.get("a")); // a commit the store didn't see
+			store.committed();
+			store.put("a", paths, deps);
+			tx[0]++;
+			store.committed();
+			store.close();
+			store = new PathCacheStore(dir, stamp, () -> tx[0]);
+			assertNotNull(store.get("a"));
+			store.close();
+
+			tx[0]++;
+			store = new PathCacheStore(dir, stamp, () -> tx[0]);
+			assertNull(store.get("a"));
+			assertEquals(0, store.size());
+			store.close();
+
+			// the oldest records are evicted beyond the cap, the compaction keeps the others
+			store = new PathCacheStore(dir, 1000, stamp, () -> tx[0]);
+			for (int i = 0; i < 20; ++i) {
+				store.put("k" + i, paths, deps);
+			}
+			assertNull(store.get("k0"));
+			assertNotNull(store.get("k19"));
+			int size = store.size();
+			assertTrue(size > 1 && size < 20);
+			store.compact();
+			assertEquals(size, store.size());
+			assertNotNull(store.get("k19"));
+			assertEquals(Arrays.toString(paths.getData()), Arrays.toString(store.get("k" + (20 - size)).paths.getData()));
+			store.put("k20", paths, deps);
+			store.close();
+			store = new PathCacheStore(dir, 1000, stamp, () -> tx[0]);
+			assertNotNull(store.get("k20"));
+			assertNotNull(store.get("k19"));
+			store.close();
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	public void testQueryFlights() throws Exception {
+		assertEquals(PathResultCache.normalize("{\"b\": 1, \"a\": [{\"d\": 2, \"c\": 3}]}"),
+				PathResultCache.normalize("{\"a\": [{\"c\": 3, \"d\": 2}], \"b\": 1}"));
+		final QueryFlights.Flight leader = QueryFlights.join("q");
+		assertTrue(leader.isLeader());
+		Path path;
+		try (Transaction tx = graphDb.beginTx()) {
+			Relationship r = _1.getRelationships(Direction.OUTGOING).iterator().next();
+			path = new MyPath(Arrays.asList(_1, r.getEndNode()), Arrays.asList(r));
+			leader.add(path);
+		}
+		final java.io.StringWriter out = new java.io.StringWriter();
+		final boolean[] followed = { false };
+		Thread follower = new Thread(() -> {
+			QueryFlights.Flight f = QueryFlights.join("q");
+			followed[0] = !f.isLeader();
+			try (com.google.gson.stream.JsonWriter writer = new com.google.gson.stream.JsonWriter(out)) {
+				writer.beginArray();
+				f.replayTo(writer);
+				writer.endArray();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		follower.start();
+		while (!leader.hasFollowers()) {
+			Thread.sleep(5);
+		}
+		try (Transaction tx = graphDb.beginTx()) {
+			leader.add(path);
+		}
+		leader.finish();
+		follower.join();
+		assertTrue(followed[0]);
+		assertEquals(2, new Gson().fromJson(out.toString(), List.class).size());
+		QueryFlights.Flight next = QueryFlights.join("q");
+		assertTrue(next.isLeader()); // a new flight
+		next.finish();
+	}
+
+	public void testCacheWarmer() {
+		PathResultCache cache = new PathResultCache(1 << 20, null);
+		CacheWarmer warmer = new CacheWarmer(graphDb, cache, 1, 0.1);
+		CacheWarmer.Query hot = new CacheWarmer.Query(_1.getId(), _4.getId(), 2, null, 5, "", "dijkstra", null);
+		CacheWarmer.Query cold = new CacheWarmer.Query(_2.getId(), _4.getId(), 2, null, 5, "", "dijkstra", null);
+		warmer.record(cold.key(), cold, 1000);
+		warmer.record(hot.key(), hot, 1000);
+		warmer.record(hot.key(), hot, -1);
+		assertEquals(Arrays.asList(hot.key()), warmer.getTop());
+		assertTrue(warmer.warm(Long.MAX_VALUE) > 0);
+		CompactPaths paths = cache.get(hot.key());
+		assertNotNull(paths);
+		assertTrue(paths.size() > 0);
+		assertNull(cache.get(cold.key()));
+		assertEquals(0, warmer.warm(Long.MAX_VALUE)); // already warm
+	}
+
+	public void testPathSessions() {
+		for (String algorithm : Arrays.asList("dijkstra", "shortestPath")) {
+			CacheWarmer.Query query = new CacheWarmer.Query(_1.getId(), _4.getId(), 1, null, 5, "", algorithm, null);
+			List<String> all = new ArrayList<>();
+			PathSessions.Continuation search = query.withK(10).search(graphDb, Trace.OFF, p -> all.add(nodeIds(p)));
+			search.close();
+			assertTrue(all.size() > 2);
+
+			List<String> pages = new ArrayList<>();
+			IPathReadyListener collect = p -> pages.add(nodeIds(p));
+			search = query.search(graphDb, Trace.OFF, collect);
+			assertEquals(1, pages.size());
+			long bytes = search.bytes();
+			assertTrue(bytes > 1024);
+			search.suspend();
+			assertTrue(search.bytes() <= bytes);
+			PathSessions.Session resumed = new PathSessions.Session(graphDb, query, 1, search,
+					PathResultCache.of(graphDb).getVersion());
+			PathSessions.Session restarted = new PathSessions.Session(graphDb, query, 1, null, 0);
+			List<String> restartedPages = new ArrayList<>(pages);
+			try (Transaction tx = graphDb.beginTx()) {
+				assertTrue(resumed.next(1, Trace.OFF, collect));
+				assertEquals(2, pages.size());
+				assertFalse(resumed.next(10, Trace.OFF, collect));
+				assertFalse(restarted.next(10, Trace.OFF, p -> restartedPages.add(nodeIds(p))));
+			}
+			assertEquals(algorithm, all, pages);
+			assertEquals(algorithm, all, restartedPages);
+		}
+	}
+
+	public void testRawPathCache() {
+		CacheWarmer.Query all = new CacheWarmer.Query(_1.getId(), _4.getId(), 10, null, 5, "", "shortestPath", null);
+		CacheWarmer.Query refined = new CacheWarmer.Query(_1.getId(), _4.getId(), 2, null, 5, "{\"acyclic\": true}",
+				"shortestPath", null);
+
+		List<String> expected = new ArrayList<>();
+		refined.search(graphDb, Trace.OFF, p -> expected.add(nodeIds(p))).close();
+		try (Transaction tx = graphDb.beginTx()) { // new version, new traversal
+			_7.setProperty("x", 1);
+			tx.success();
+		}
+		List<String> unrefined = new ArrayList<>();
+		all.search(graphDb, Trace.OFF, p -> unrefined.add(nodeIds(p))).close();
+		assertEquals(1, RawPathCache.of(graphDb).size());
+
+		Trace trace = new Trace(1024);
+		List<String> actual = new ArrayList<>();
+		refined.search(graphDb, trace, p -> actual.add(nodeIds(p))).close();
+		assertEquals(2, actual.size());
+		assertEquals(expected, actual);
+		assertTrue(unrefined.containsAll(actual));
+		assertTrue(unrefined.size() > actual.size());
+		for (String entry : trace.getEntries()) {
+			assertFalse(entry, entry.contains("resolve relationships")); // no traversal
+		}
+	}
+
+	public void testProcedures() throws Exception {
+		((org.neo4j.kernel.internal.GraphDatabaseAPI) graphDb).getDependencyResolver()
+				.resolveDependency(org.neo4j.kernel.impl.proc.Procedures.class)
+				.registerProcedure(KShortestPathsProcedures.class);
+		try (Transaction tx = graphDb.beginTx()) { // more paths than the first page
+			for (int i = 0; i < 12; ++i) {
+				Node m = createNode("m" + i);
+				_1.createRelationshipTo(m, to);
+				m.createRelationshipTo(_4, to);
+			}
+			tx.success();
+		}
+		for (String algorithm : Arrays.asList("dijkstra", "shortestPath")) {
+			CacheWarmer.Query query = new CacheWarmer.Query(_1.getId(), _4.getId(), 20, null, 5, "", algorithm, null);
+			List<String> expected = new ArrayList<>();
+			query.search(graphDb, Trace.OFF, p -> expected.add(nodeIds(KShortestPathsProcedures.toReal(p)))).close();
+
+			Map<String, Object> params = new java.util.HashMap<>();
+			params.put("a", _1);
+			params.put("b", _4);
+			params.put("config", Collections.singletonMap("algorithm", algorithm));
+			List<String> actual = new ArrayList<>();
+			try (Transaction tx = graphDb.beginTx();
+					Result r = graphDb.execute("CALL kshortest.paths($a, $b, 20, {algorithm: $config.algorithm, maxDepth: 5}) YIELD path, weight "
+							+ "RETURN path, length(path) AS length, weight", params)) {
+				while (r.hasNext()) {
+					Map<String, Object> row = r.next();
+					Path path = (Path) row.get("path");
+					assertEquals(path.length(), ((Number) row.get("length")).intValue());
+					assertEquals(_1.getId(), path.startNode().getId());
+					assertEquals(_4.getId(), path.endNode().getId());
+					actual.add(nodeIds(path));
+				}
+				tx.success();
+			}
+			assertFalse(expected.isEmpty());
+			assertTrue(expected.size() > 8);
+			assertEquals(algorithm, expected, actual);
+		}
+	}
+
+	private static String nodeIds(Path p) {
+		StringBuilder b = new StringBuilder();
+		for (Node n : p.nodes()) {
+			b.append(n.getId()).append(' ');
+		}
+		return b.toString();
+	}
+
 	/**
 	 * Rigourous Test :-)
 	 */